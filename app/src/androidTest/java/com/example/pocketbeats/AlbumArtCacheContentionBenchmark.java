@@ -0,0 +1,99 @@
+package com.example.pocketbeats;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures {@link AlbumArtCache#copyThumb} throughput while reader threads,
+ * standing in for list binds and binder calls, race decode threads putting
+ * new thumbnails and no-art albums. Results only go to logcat under
+ * {@link #TAG}; run on a multi-core device with
+ * {@code ./gradlew connectedAndroidTest}.
+ */
+public class AlbumArtCacheContentionBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "ArtCacheBench";
+
+    private static final int ALBUMS = 400;
+    private static final long RUN_MS = 2000;
+    private static final int[][] THREADS = { { 1, 0 }, { 4, 0 }, { 4, 2 }, { 8, 2 }, { 8, 4 } };
+
+    public void testCopyThumbUnderContention() throws Exception {
+        AlbumArtCache cache = AlbumArtCache.getInstance(getContext());
+        // Half the albums start cached, so readers see hits and misses alike
+        for (int albumId = 1; albumId <= ALBUMS / 2; albumId++) {
+            cache.putThumb(albumId, pixelsFor(albumId));
+        }
+        for (int i = 0; i < THREADS.length; i++) {
+            long copies = run(cache, THREADS[i][0], THREADS[i][1]);
+            Log.i(TAG, THREADS[i][0] + " readers, " + THREADS[i][1] + " writers: "
+                    + (copies * 1000 / RUN_MS) + " lookups/s");
+        }
+        cache.logStats();
+    }
+
+    private long run(final AlbumArtCache cache, int readers, int writers)
+            throws InterruptedException {
+        final long end = SystemClock.uptimeMillis() + RUN_MS;
+        final AtomicLong lookups = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(readers + writers);
+        for (int t = 0; t < readers; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                public void run() {
+                    Bitmap target = Bitmap.createBitmap(ThumbnailStore.SIZE, ThumbnailStore.SIZE,
+                            Bitmap.Config.RGB_565);
+                    Random random = new Random(seed);
+                    long n = 0;
+                    while (SystemClock.uptimeMillis() < end) {
+                        for (int k = 0; k < 64; k++) {
+                            cache.copyThumb(1 + random.nextInt(ALBUMS), target);
+                        }
+                        n += 64;
+                    }
+                    target.recycle();
+                    lookups.addAndGet(n);
+                    done.countDown();
+                }
+            }, "BenchReader-" + t).start();
+        }
+        for (int t = 0; t < writers; t++) {
+            final int seed = 1000 + t;
+            new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random(seed);
+                    while (SystemClock.uptimeMillis() < end) {
+                        long albumId = 1 + random.nextInt(ALBUMS);
+                        if (random.nextInt(8) == 0) {
+                            cache.putNoArt(albumId);
+                        } else if (random.nextInt(8) == 0) {
+                            cache.invalidate(albumId);
+                        } else {
+                            cache.putThumb(albumId, pixelsFor(albumId));
+                        }
+                    }
+                    done.countDown();
+                }
+            }, "BenchWriter-" + t).start();
+        }
+        done.await();
+        return lookups.get();
+    }
+
+    /** Distinct pixels per album, so no two albums share a buffer. */
+    private static ByteBuffer pixelsFor(long albumId) {
+        ByteBuffer pixels = BitmapPool.getInstance().acquireBuffer();
+        for (int i = 0; i + 8 <= pixels.capacity(); i += 8) {
+            pixels.putLong(i, albumId * 31 + i);
+        }
+        pixels.clear();
+        return pixels;
+    }
+}
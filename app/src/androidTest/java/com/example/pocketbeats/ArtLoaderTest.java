@@ -0,0 +1,78 @@
+package com.example.pocketbeats;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks how {@link ArtLoader#decodeThumbnail} maps source failures: only
+ * a missing source is remembered as no art, anything else is retried.
+ */
+public class ArtLoaderTest extends AndroidTestCase {
+
+    private ByteBuffer pixels;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        pixels = BitmapPool.getInstance().acquireBuffer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        BitmapPool.getInstance().releaseBuffer(pixels);
+        super.tearDown();
+    }
+
+    public void testMissingSourceIsNoImage() {
+        ArtDecoder.Source source = new ArtDecoder.Source() {
+            public InputStream open() throws IOException {
+                // The provider's answer when an album's ALBUM_ART is null
+                throw new FileNotFoundException("No album art");
+            }
+        };
+        assertEquals(ArtLoader.NO_IMAGE, ArtLoader.decodeThumbnail(source, pixels));
+    }
+
+    public void testEmptySourceIsNoImage() {
+        ArtDecoder.Source source = new ArtDecoder.Source() {
+            public InputStream open() {
+                return null;
+            }
+        };
+        assertEquals(ArtLoader.NO_IMAGE, ArtLoader.decodeThumbnail(source, pixels));
+    }
+
+    public void testReadErrorIsFailed() {
+        ArtDecoder.Source source = new ArtDecoder.Source() {
+            public InputStream open() throws IOException {
+                throw new IOException("Storage unmounted");
+            }
+        };
+        assertEquals(ArtLoader.FAILED, ArtLoader.decodeThumbnail(source, pixels));
+    }
+
+    public void testRuntimeErrorIsFailed() {
+        ArtDecoder.Source source = new ArtDecoder.Source() {
+            public InputStream open() {
+                throw new IllegalStateException("Provider died");
+            }
+        };
+        assertEquals(ArtLoader.FAILED, ArtLoader.decodeThumbnail(source, pixels));
+    }
+
+    public void testUnreadableTagsAreFailed() throws IOException {
+        // Not an audio file, so setDataSource throws
+        File file = File.createTempFile("notaudio", ".mp3", getContext().getCacheDir());
+        try {
+            ArtDecoder.Source source = ArtDecoder.embeddedArt(file.getPath());
+            assertEquals(ArtLoader.FAILED, ArtLoader.decodeThumbnail(source, pixels));
+        } finally {
+            file.delete();
+        }
+    }
+}
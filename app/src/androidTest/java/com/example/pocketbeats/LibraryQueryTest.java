@@ -0,0 +1,73 @@
+package com.example.pocketbeats;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Checks {@link LibraryQuery} matching, through the index and song by song.
+ */
+public class LibraryQueryTest extends AndroidTestCase {
+
+    private ArrayList<Song> songs;
+    private QueryIndex index;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        songs = new ArrayList<Song>();
+        songs.add(song(1, "Heartbeat", "The Fray", "Scars & Souvenirs"));
+        songs.add(song(2, "Speak to Me", "Pink Floyd", "The Dark Side of the Moon"));
+        songs.add(song(3, "Side of the Dark", "Pink Floyd", "Outtakes"));
+        songs.add(song(4, "Everything in Its Right Place", "Radiohead", "Kid A"));
+        songs.add(song(5, "Beat It", "Michael Jackson", "Thriller"));
+        index = QueryIndex.build(songs);
+    }
+
+    public void testWordMatchesInsideWords() {
+        assertHits("beat", 1, 5);
+        assertHits("eartb", 1);
+    }
+
+    public void testWordMatchesWordStarts() {
+        assertHits("pink", 2, 3);
+        assertHits("artist:rad", 4);
+    }
+
+    public void testQuotedPhraseNeedsAdjacentWords() {
+        assertHits("\"dark side\"", 2);
+        assertHits("\"side of the\"", 2, 3);
+        assertHits("\"pink side\"");
+    }
+
+    public void testQuotedPhraseInOneField() {
+        assertHits("album:\"kid a\"", 4);
+        assertHits("title:\"dark side\"");
+        // Both words occur, but in different fields
+        assertHits("\"floyd outtakes\"");
+    }
+
+    private void assertHits(String text, int... ids) {
+        LibraryQuery query = LibraryQuery.parse(text);
+        int[] hits = query.execute(index);
+        long[] found = new long[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            found[i] = songs.get(hits[i]).getId();
+        }
+        long[] expected = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            expected[i] = ids[i];
+        }
+        assertTrue(text + " found " + Arrays.toString(found), Arrays.equals(expected, found));
+        for (int i = 0; i < songs.size(); i++) {
+            Song song = songs.get(i);
+            boolean hit = Arrays.binarySearch(hits, i) >= 0;
+            assertTrue(text + " disagrees on " + song.getTitle(), hit == query.matches(song));
+        }
+    }
+
+    private static Song song(long id, String title, String artist, String album) {
+        return new Song(id, title, artist, album, id, "/sdcard/Music/" + id + ".mp3", 180000);
+    }
+}
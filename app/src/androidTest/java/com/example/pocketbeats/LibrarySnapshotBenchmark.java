@@ -0,0 +1,77 @@
+package com.example.pocketbeats;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times {@link LibrarySnapshot#build} over synthetic libraries with
+ * {@link LibraryWorkers} pinned to 1, 2 and 4 workers, and checks every
+ * worker count produces the same orders. Timings only go to logcat under
+ * {@link #TAG}; run on a multi-core device with
+ * {@code ./gradlew connectedAndroidTest}.
+ */
+public class LibrarySnapshotBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "SnapshotBench";
+
+    private static final int[] LIBRARY_SIZES = { 10000, 50000 };
+    private static final int[] WORKER_COUNTS = { 1, 2, 4 };
+    // Later runs are averaged; the first warms up the JIT and class loading
+    private static final int RUNS = 4;
+
+    public void testBuildWithPinnedWorkerCounts() {
+        int defaultCount = LibraryWorkers.getWorkerCount();
+        try {
+            for (int s = 0; s < LIBRARY_SIZES.length; s++) {
+                ArrayList<Song> songs = syntheticLibrary(LIBRARY_SIZES[s]);
+                int[] expected = null;
+                for (int w = 0; w < WORKER_COUNTS.length; w++) {
+                    LibraryWorkers.setWorkerCount(WORKER_COUNTS[w]);
+                    long total = 0;
+                    LibrarySnapshot snapshot = null;
+                    for (int run = 0; run < RUNS; run++) {
+                        long start = SystemClock.uptimeMillis();
+                        snapshot = LibrarySnapshot.build(songs);
+                        if (run > 0) total += SystemClock.uptimeMillis() - start;
+                    }
+                    Log.i(TAG, songs.size() + " songs, " + LibraryWorkers.getWorkerCount()
+                            + " workers: " + (total / (RUNS - 1)) + " ms");
+                    int[] order = snapshot.getOrder(LibrarySnapshot.ORDER_ALBUM_TRACKS);
+                    if (expected == null) {
+                        expected = order;
+                    } else {
+                        assertTrue("Album order differs with " + WORKER_COUNTS[w] + " workers",
+                                Arrays.equals(expected, order));
+                    }
+                }
+            }
+        } finally {
+            LibraryWorkers.setWorkerCount(defaultCount);
+        }
+    }
+
+    private static ArrayList<Song> syntheticLibrary(int count) {
+        Random random = new Random(count);
+        ArrayList<Song> songs = new ArrayList<Song>(count);
+        for (int i = 0; i < count; i++) {
+            int album = random.nextInt(count / 10);
+            String artist = "Artist " + (album % 997);
+            Song song = new Song(i + 1, "Title " + random.nextInt(count), artist,
+                    "Album " + album, album + 1, "/sdcard/Music/" + album + "/" + i + ".mp3",
+                    180000);
+            song.setAlbumArtist(artist);
+            song.setGenre("Genre " + (album % 23));
+            song.setYear(1960 + album % 60);
+            song.setTrack(1 + random.nextInt(20));
+            song.setDateAdded(1300000000L + random.nextInt(100000000));
+            song.setDateModified(1300000000L + random.nextInt(100000000));
+            songs.add(song);
+        }
+        return songs;
+    }
+}
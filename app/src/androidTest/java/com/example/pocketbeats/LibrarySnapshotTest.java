@@ -0,0 +1,43 @@
+package com.example.pocketbeats;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Checks the album-track order of {@link LibrarySnapshot}.
+ */
+public class LibrarySnapshotTest extends AndroidTestCase {
+
+    public void testSameNamedAlbumsDoNotInterleave() {
+        ArrayList<Song> songs = new ArrayList<Song>();
+        // Same title, album artist and year; only the album differs
+        songs.add(song(1, 10, "/sdcard/Music/a/1.mp3", 1));
+        songs.add(song(2, 20, "/sdcard/Music/b/1.mp3", 1));
+        songs.add(song(3, 10, "/sdcard/Music/a/2.mp3", 2));
+        songs.add(song(4, 20, "/sdcard/Music/b/2.mp3", 2));
+        // Filesystem songs are keyed by folder instead of album id
+        songs.add(song(5, 0, "/sdcard/Music/c/1.mp3", 1));
+        songs.add(song(6, 0, "/sdcard/Music/d/1.mp3", 1));
+        songs.add(song(7, 0, "/sdcard/Music/c/2.mp3", 2));
+        songs.add(song(8, 0, "/sdcard/Music/d/2.mp3", 2));
+
+        LibrarySnapshot snapshot = LibrarySnapshot.build(songs);
+        int[] order = snapshot.getOrder(LibrarySnapshot.ORDER_ALBUM_TRACKS);
+        assertEquals(songs.size(), order.length);
+        for (int i = 0; i < order.length; i += 2) {
+            Song first = songs.get(order[i]);
+            Song second = songs.get(order[i + 1]);
+            assertEquals(first.getAlbumKey(), second.getAlbumKey());
+            assertEquals(1, first.getTrack());
+            assertEquals(2, second.getTrack());
+        }
+    }
+
+    private static Song song(long id, long albumId, String path, int track) {
+        Song song = new Song(id, "Track " + track, "Various", "Greatest Hits", albumId, path, 180000);
+        song.setYear(1999);
+        song.setTrack(track);
+        return song;
+    }
+}
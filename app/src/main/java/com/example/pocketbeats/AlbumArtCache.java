@@ -1,84 +1,611 @@
 package com.example.pocketbeats;
 
+import android.app.ActivityManager;
+import android.content.Context;
 import android.graphics.Bitmap;
+import android.util.Log;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * In-memory album art, in two tiers sized from the device's memory class.
+ * List thumbnails are kept as RGB565 pixel buffers rather than bitmaps:
+ * views copy pixels into bitmaps they own, so an evicted buffer can go
+ * straight back to the {@link BitmapPool}. Albums whose art decodes to the
+ * same pixels, as across discs of one set, share a single buffer that is
+ * charged to the budget once. Full-size art for the player is
+ * kept as {@link BitmapHandle}s, RGB565 unless the image has transparency;
+ * an evicted bitmap is recycled once no view holds it either.
+ *
+ * Albums known to have no art are kept apart in a primitive set that never
+ * counts against either budget, and saved across launches. The set is
+ * immutable and replaced on each change, so probing it takes no lock
+ * either.
+ *
+ * Lookups are lock-free reads of a concurrent map that only set a CLOCK
+ * reference bit. Inserts and eviction take a per-tier lock that readers
+ * never touch; the CLOCK hand spares entries read since its last pass.
+ */
 public class AlbumArtCache {
 
-    private static final int MAX_SIZE_BYTES = 2 * 1024 * 1024; // 2MB
+    private static final String TAG = "AlbumArtCache";
+
+    /** Results of {@link #copyThumb}. */
+    public static final int HIT = 0;
+    public static final int MISS = 1;
+    public static final int NO_ART = 2;
+
+    // Shares of the per-app heap limit
+    private static final int THUMB_HEAP_DIVISOR = 16;
+    private static final int FULL_HEAP_DIVISOR = 8;
+    private static final int MIN_THUMB_BYTES = 512 * 1024;
+    private static final int MIN_FULL_BYTES = 1024 * 1024;
+    // Binder threads rarely outnumber this
+    private static final int CONCURRENCY = 4;
+
+    private static final String NO_ART_FILE = "noart.dat";
+    private static final int NO_ART_MAGIC = 0x50424e41; // "PBNA"
+    private static final int NO_ART_VERSION = 1;
 
     private static AlbumArtCache instance;
 
-    // Sentinel bitmap to mark album IDs with no art (prevents repeated failed loads)
-    private static final Bitmap NO_ART_SENTINEL = Bitmap.createBitmap(1, 1, Bitmap.Config.ALPHA_8);
-
-    private final LinkedHashMap<Long, Bitmap> cache;
-    private int currentSizeBytes = 0;
-
-    private AlbumArtCache() {
-        cache = new LinkedHashMap<Long, Bitmap>(32, 0.75f, true) {
-            protected boolean removeEldestEntry(Map.Entry<Long, Bitmap> eldest) {
-                if (currentSizeBytes > MAX_SIZE_BYTES) {
-                    Bitmap evicted = eldest.getValue();
-                    if (evicted != null && evicted != NO_ART_SENTINEL) {
-                        currentSizeBytes -= getBitmapSize(evicted);
-                        evicted.recycle();
-                    }
-                    return true;
+    private final Tier<Thumb> thumbs;
+    private final Tier<BitmapHandle> full;
+    private final BitmapPool pool = BitmapPool.getInstance();
+    // Cached thumbnails by content hash; guarded by thumbs
+    private final HashMap<Integer, Thumb> thumbsByHash = new HashMap<Integer, Thumb>();
+    private int sharedThumbs;
+    private final File dir;
+    // Albums whose art is known to be missing; never modified once published
+    private volatile NoArtSet noArt =
+            new NoArtSet(new LongHashSet(), new LongHashSet(), new LongHashSet());
+    // Serializes replacing noArt; guards noArtChanged
+    private final Object noArtLock = new Object();
+    private boolean noArtChanged;
+
+    /** Thumbnail pixels, shared by every album whose art decodes identically. */
+    private static final class Thumb {
+        final ByteBuffer pixels;
+        final int hash;
+        // Tier entries for it not yet released; the buffer is pooled at zero
+        final AtomicInteger entries = new AtomicInteger();
+        // Albums it is cached under; guarded by the thumbs tier
+        int albums;
+
+        Thumb(ByteBuffer pixels, int hash) {
+            this.pixels = pixels;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Immutable no-art set: a large base plus small sets of recent changes.
+     * A change copies only the small sets, and the base is rebuilt once they
+     * outgrow the square root of its size, so a long run of new no-art
+     * albums costs O(sqrt n) each instead of a full copy.
+     */
+    private static final class NoArtSet {
+        // Minimum change count before the base is rebuilt
+        private static final int MIN_CHANGES = 32;
+
+        final LongHashSet base;
+        // Never in base
+        final LongHashSet added;
+        // Always in base
+        final LongHashSet removed;
+
+        NoArtSet(LongHashSet base, LongHashSet added, LongHashSet removed) {
+            this.base = base;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        boolean contains(long albumId) {
+            return added.contains(albumId) || (base.contains(albumId) && !removed.contains(albumId));
+        }
+
+        int size() {
+            return base.size() + added.size() - removed.size();
+        }
+
+        /** Returns a set that also holds {@code albumId}, or this if it already does. */
+        NoArtSet with(long albumId) {
+            if (contains(albumId)) return this;
+            if (removed.contains(albumId)) {
+                LongHashSet changed = new LongHashSet(removed);
+                changed.remove(albumId);
+                return new NoArtSet(base, added, changed);
+            }
+            LongHashSet changed = new LongHashSet(added);
+            changed.add(albumId);
+            return new NoArtSet(base, changed, removed).compact();
+        }
+
+        /** Returns a set without {@code albumId}, or this if it is not held. */
+        NoArtSet without(long albumId) {
+            if (!contains(albumId)) return this;
+            if (added.contains(albumId)) {
+                LongHashSet changed = new LongHashSet(added);
+                changed.remove(albumId);
+                return new NoArtSet(base, changed, removed);
+            }
+            LongHashSet changed = new LongHashSet(removed);
+            changed.add(albumId);
+            return new NoArtSet(base, added, changed).compact();
+        }
+
+        /** Returns a set that also holds {@code albumIds}, in a single copy. */
+        NoArtSet withAll(long[] albumIds) {
+            LongHashSet merged = merge();
+            for (int i = 0; i < albumIds.length; i++) {
+                merged.add(albumIds[i]);
+            }
+            return new NoArtSet(merged, new LongHashSet(), new LongHashSet());
+        }
+
+        long[] toArray() {
+            return merge().toArray();
+        }
+
+        private NoArtSet compact() {
+            int changes = added.size() + removed.size();
+            if (changes < MIN_CHANGES || (long) changes * changes < base.size()) return this;
+            return new NoArtSet(merge(), new LongHashSet(), new LongHashSet());
+        }
+
+        private LongHashSet merge() {
+            LongHashSet merged = new LongHashSet(base);
+            long[] ids = added.toArray();
+            for (int i = 0; i < ids.length; i++) {
+                merged.add(ids[i]);
+            }
+            ids = removed.toArray();
+            for (int i = 0; i < ids.length; i++) {
+                merged.remove(ids[i]);
+            }
+            return merged;
+        }
+    }
+
+    private static final class Entry<V> {
+        final long albumId;
+        final V value;
+        // CLOCK bit: set by readers, cleared by the passing hand
+        volatile boolean referenced;
+        // One for the cache itself plus one per reader copying out of it
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Entry(long albumId, V value) {
+            this.albumId = albumId;
+            this.value = value;
+        }
+
+        /** Fails once the cache has let go and no reader is left. */
+        boolean pin() {
+            while (true) {
+                int n = refs.get();
+                if (n == 0) return false;
+                if (refs.compareAndSet(n, n + 1)) return true;
+            }
+        }
+
+        /** Returns true if this dropped the last reference. */
+        boolean unpin() {
+            return refs.decrementAndGet() == 0;
+        }
+    }
+
+    private abstract static class Tier<V> {
+        final String name;
+        final int maxBytes;
+        final ConcurrentHashMap<Long, Entry<V>> entries =
+                new ConcurrentHashMap<Long, Entry<V>>(64, 0.75f, CONCURRENCY);
+        final AtomicInteger hits = new AtomicInteger();
+        final AtomicInteger misses = new AtomicInteger();
+        final AtomicInteger evictions = new AtomicInteger();
+
+        // Everything below is guarded by the tier itself
+        final ArrayList<Entry<V>> ring = new ArrayList<Entry<V>>();
+        int hand;
+        int sizeBytes;
+
+        Tier(String name, int maxBytes) {
+            this.name = name;
+            this.maxBytes = maxBytes;
+        }
+
+        /** Called when an entry joins the tier; returns the bytes it adds. */
+        abstract int attach(V value);
+
+        /** Called when an entry leaves the tier; returns the bytes it frees. */
+        abstract int detach(V value);
+
+        /** Called once the last reference to an entry's value is gone. */
+        abstract void release(V value);
+
+        Entry<V> lookup(long albumId) {
+            Entry<V> entry = entries.get(albumId);
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            entry.referenced = true;
+            hits.incrementAndGet();
+            return entry;
+        }
+
+        /** Not counted and leaves the reference bit alone. */
+        Entry<V> peek(long albumId) {
+            return entries.get(albumId);
+        }
+
+        synchronized void put(long albumId, V value) {
+            Entry<V> entry = new Entry<V>(albumId, value);
+            Entry<V> old = entries.put(albumId, entry);
+            // Attached first, so replacing an album's art with itself frees nothing
+            sizeBytes += attach(value);
+            if (old != null) {
+                // Left in the ring until the hand or a sweep passes it
+                sizeBytes -= detach(old.value);
+                unpin(old);
+            }
+            ring.add(entry);
+            evict(entry);
+            if (ring.size() > entries.size() * 2 + 16) {
+                sweepRing();
+            }
+        }
+
+        /** Drops replaced and removed entries the hand has not reached yet. */
+        private void sweepRing() {
+            for (int i = ring.size() - 1; i >= 0; i--) {
+                Entry<V> entry = ring.get(i);
+                if (entries.get(entry.albumId) != entry) {
+                    removeFromRing(i);
+                }
+            }
+        }
+
+        synchronized void remove(long albumId) {
+            Entry<V> old = entries.remove(albumId);
+            if (old != null) {
+                sizeBytes -= detach(old.value);
+                unpin(old);
+            }
+        }
+
+        synchronized void clear() {
+            for (Entry<V> entry : entries.values()) {
+                detach(entry.value);
+                unpin(entry);
+            }
+            entries.clear();
+            ring.clear();
+            hand = 0;
+            sizeBytes = 0;
+        }
+
+        /** Runs the CLOCK hand until the tier fits, sparing {@code added}. */
+        private void evict(Entry<V> added) {
+            while (sizeBytes > maxBytes && ring.size() > 1) {
+                if (hand >= ring.size()) {
+                    hand = 0;
+                }
+                Entry<V> entry = ring.get(hand);
+                if (entries.get(entry.albumId) != entry) {
+                    // Replaced or removed since it joined the ring
+                    removeFromRing(hand);
+                } else if (entry == added || entry.referenced) {
+                    entry.referenced = false;
+                    hand++;
+                } else {
+                    entries.remove(entry.albumId);
+                    removeFromRing(hand);
+                    sizeBytes -= detach(entry.value);
+                    unpin(entry);
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+
+        private void removeFromRing(int index) {
+            // Order within the ring barely matters to CLOCK, so swap in the tail
+            int last = ring.size() - 1;
+            ring.set(index, ring.get(last));
+            ring.remove(last);
+        }
+
+        void unpin(Entry<V> entry) {
+            if (entry.unpin()) {
+                release(entry.value);
+            }
+        }
+
+        String stats() {
+            int size;
+            synchronized (this) {
+                size = sizeBytes;
+            }
+            return name + ": " + entries.size() + " entries, " + (size / 1024) + "/"
+                    + (maxBytes / 1024) + "KB, " + hits.get() + " hits, " + misses.get()
+                    + " misses, " + evictions.get() + " evictions";
+        }
+    }
+
+    private AlbumArtCache(int memoryClass, File dir) {
+        this.dir = dir;
+        int heapBytes = memoryClass * 1024 * 1024;
+        thumbs = new Tier<Thumb>("thumbs",
+                Math.max(MIN_THUMB_BYTES, heapBytes / THUMB_HEAP_DIVISOR)) {
+            int attach(Thumb thumb) {
+                thumb.entries.incrementAndGet();
+                // Shared pixels only count for the first album
+                return thumb.albums++ == 0 ? thumb.pixels.capacity() : 0;
+            }
+
+            int detach(Thumb thumb) {
+                if (--thumb.albums > 0) return 0;
+                if (thumbsByHash.get(thumb.hash) == thumb) {
+                    thumbsByHash.remove(thumb.hash);
+                }
+                return thumb.pixels.capacity();
+            }
+
+            void release(Thumb thumb) {
+                if (thumb.entries.decrementAndGet() == 0) {
+                    pool.releaseBuffer(thumb.pixels);
                 }
-                return false;
             }
         };
+        full = new Tier<BitmapHandle>("full",
+                Math.max(MIN_FULL_BYTES, heapBytes / FULL_HEAP_DIVISOR)) {
+            int attach(BitmapHandle handle) {
+                return sizeOf(handle.getBitmap());
+            }
+
+            int detach(BitmapHandle handle) {
+                return sizeOf(handle.getBitmap());
+            }
+
+            void release(BitmapHandle handle) {
+                // Recycled here unless the player is still showing it
+                handle.release();
+            }
+        };
+        Log.i(TAG, "Memory class " + memoryClass + "MB: " + (thumbs.maxBytes / 1024)
+                + "KB for thumbnails, " + (full.maxBytes / 1024) + "KB for full-size art");
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
     }
 
-    public static synchronized AlbumArtCache getInstance() {
+    public static synchronized AlbumArtCache getInstance(Context context) {
         if (instance == null) {
-            instance = new AlbumArtCache();
+            Context app = context.getApplicationContext();
+            ActivityManager am = (ActivityManager) app.getSystemService(Context.ACTIVITY_SERVICE);
+            instance = new AlbumArtCache(am.getMemoryClass(), app.getCacheDir());
         }
         return instance;
     }
 
-    public synchronized Bitmap get(long albumId) {
-        Bitmap bmp = cache.get(albumId);
-        if (bmp == NO_ART_SENTINEL) {
-            return null;
+    /**
+     * Copies the album's thumbnail into {@code target}, a
+     * {@link ThumbnailStore#SIZE}px RGB565 bitmap. Returns {@link #HIT},
+     * {@link #MISS} if it is not cached, or {@link #NO_ART}. Safe on any
+     * thread and never blocks.
+     */
+    public int copyThumb(long albumId, Bitmap target) {
+        Entry<Thumb> entry = thumbs.lookup(albumId);
+        if (entry == null) return isNoArt(albumId) ? NO_ART : MISS;
+        // Keeps an entry evicted mid-copy from being handed out by the pool
+        if (!entry.pin()) return MISS;
+        try {
+            // A private view, since concurrent readers would race on the position
+            target.copyPixelsFromBuffer(entry.value.pixels.duplicate());
+        } finally {
+            thumbs.unpin(entry);
         }
-        return bmp;
+        return HIT;
     }
 
-    public synchronized boolean contains(long albumId) {
-        return cache.containsKey(albumId);
+    /** Whether the thumbnail or the absence of art is known; not counted as a lookup. */
+    public boolean contains(long albumId) {
+        return thumbs.peek(albumId) != null || isNoArt(albumId);
     }
 
-    public synchronized void put(long albumId, Bitmap bitmap) {
-        if (bitmap == null) return;
-        // Remove old entry if exists
-        Bitmap old = cache.remove(albumId);
-        if (old != null && old != NO_ART_SENTINEL) {
-            currentSizeBytes -= getBitmapSize(old);
-            old.recycle();
+    /**
+     * Takes ownership of {@code pixels}, which must come from the
+     * {@link BitmapPool}. If another album already has identical pixels
+     * cached, the album shares them and {@code pixels} goes back to the pool.
+     */
+    public void putThumb(long albumId, ByteBuffer pixels) {
+        if (pixels == null) return;
+        int hash = ThumbnailStore.contentHash(pixels);
+        synchronized (thumbs) {
+            Thumb thumb = thumbsByHash.get(hash);
+            if (thumb != null && thumb.pixels != pixels
+                    && ThumbnailStore.samePixels(thumb.pixels, pixels)) {
+                pool.releaseBuffer(pixels);
+                sharedThumbs++;
+            } else if (thumb == null || thumb.pixels != pixels) {
+                thumb = new Thumb(pixels, hash);
+                thumbsByHash.put(hash, thumb);
+            }
+            thumbs.put(albumId, thumb);
+        }
+    }
+
+    public void putNoArt(long albumId) {
+        if (albumId == 0) return;
+        synchronized (noArtLock) {
+            NoArtSet changed = noArt.with(albumId);
+            if (changed != noArt) {
+                noArt = changed;
+                noArtChanged = true;
+            }
+        }
+        thumbs.remove(albumId);
+        full.remove(albumId);
+    }
+
+    public boolean isNoArt(long albumId) {
+        return noArt.contains(albumId);
+    }
+
+    /** Forgets everything about the album's art, e.g. after its files changed. */
+    public void invalidate(long albumId) {
+        if (albumId == 0) return;
+        synchronized (noArtLock) {
+            NoArtSet changed = noArt.without(albumId);
+            if (changed != noArt) {
+                noArt = changed;
+                noArtChanged = true;
+            }
         }
-        currentSizeBytes += getBitmapSize(bitmap);
-        cache.put(albumId, bitmap);
+        thumbs.remove(albumId);
+        full.remove(albumId);
+    }
+
+    /** Not counted as a lookup. */
+    public boolean containsFull(long albumId) {
+        return full.peek(albumId) != null;
+    }
+
+    /**
+     * Returns cached full-size art with a reference the caller must
+     * {@link BitmapHandle#release}, or null.
+     */
+    public BitmapHandle acquireFull(long albumId) {
+        Entry<BitmapHandle> entry = full.lookup(albumId);
+        if (entry == null || !entry.value.retain()) return null;
+        return entry.value;
     }
 
-    public synchronized void putNoArt(long albumId) {
-        Bitmap old = cache.remove(albumId);
-        if (old != null && old != NO_ART_SENTINEL) {
-            currentSizeBytes -= getBitmapSize(old);
-            old.recycle();
+    /**
+     * Caches full-size art. Opaque ARGB_8888 bitmaps are converted to RGB565
+     * and recycled. Returns the cached bitmap with a reference for the caller,
+     * taken before the cache can evict it.
+     */
+    public BitmapHandle putFull(long albumId, Bitmap bitmap) {
+        if (bitmap.getConfig() == Bitmap.Config.ARGB_8888 && !bitmap.hasAlpha()) {
+            Bitmap converted = bitmap.copy(Bitmap.Config.RGB_565, false);
+            if (converted != null) {
+                bitmap.recycle();
+                bitmap = converted;
+            }
         }
-        cache.put(albumId, NO_ART_SENTINEL);
+        BitmapHandle handle = new BitmapHandle(bitmap);
+        handle.retain();
+        full.put(albumId, handle);
+        return handle;
     }
 
-    public synchronized boolean isNoArt(long albumId) {
-        return cache.get(albumId) == NO_ART_SENTINEL;
+    /**
+     * Drops the full-size tier, e.g. when the system runs low on memory.
+     * Art still on screen is recycled when its view lets go.
+     */
+    public void trimFull() {
+        full.clear();
     }
 
-    private static int getBitmapSize(Bitmap bmp) {
-        if (bmp == null || bmp == NO_ART_SENTINEL) return 0;
-        return bmp.getRowBytes() * bmp.getHeight();
+    /**
+     * Adds the albums saved by {@link #saveNoArt} to the no-art set. Returns
+     * the library watermark they were saved with, or 0 if nothing was saved;
+     * albums of songs added or modified since then should be
+     * {@link #invalidate}d. Reads a file, so call it off the main thread.
+     */
+    public long loadNoArt() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(new File(dir, NO_ART_FILE))));
+            if (in.readInt() != NO_ART_MAGIC || in.readInt() != NO_ART_VERSION) return 0;
+            long watermark = in.readLong();
+            if (watermark <= 0) return 0;
+            int count = in.readInt();
+            long[] albumIds = new long[count];
+            for (int i = 0; i < count; i++) {
+                albumIds[i] = in.readLong();
+            }
+            synchronized (noArtLock) {
+                noArt = noArt.withAll(albumIds);
+            }
+            return watermark;
+        } catch (FileNotFoundException e) {
+            return 0;
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable no-art list");
+            return 0;
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Saves the no-art set if it changed, together with the library
+     * watermark it is valid for. Writes a file, so call it off the main thread.
+     */
+    public void saveNoArt(long watermark) {
+        // Without a watermark a saved list could never be invalidated
+        if (watermark <= 0) return;
+        long[] albumIds;
+        synchronized (noArtLock) {
+            if (!noArtChanged) return;
+            albumIds = noArt.toArray();
+            noArtChanged = false;
+        }
+        File file = new File(dir, NO_ART_FILE);
+        File temp = new File(dir, NO_ART_FILE + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(NO_ART_MAGIC);
+            out.writeInt(NO_ART_VERSION);
+            out.writeLong(watermark);
+            out.writeInt(albumIds.length);
+            for (int i = 0; i < albumIds.length; i++) {
+                out.writeLong(albumIds[i]);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving no-art list", e);
+            synchronized (noArtLock) {
+                noArtChanged = true;
+            }
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    public void logStats() {
+        int noArtCount = noArt.size();
+        int shared;
+        synchronized (thumbs) {
+            shared = sharedThumbs;
+        }
+        Log.i(TAG, thumbs.stats() + ", " + shared + " shared; " + full.stats() + "; "
+                + noArtCount + " without art");
     }
 }
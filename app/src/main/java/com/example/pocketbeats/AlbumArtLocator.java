@@ -0,0 +1,120 @@
+package com.example.pocketbeats;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Album art file paths read in one query over MediaStore's album table,
+ * so decodes can open the cached art file directly instead of going
+ * through the albumart provider. Albums the table does not list have no
+ * art and never reach the provider; listed albums without a path still
+ * ask it, since it may extract embedded art on demand.
+ *
+ * Loaded with each library snapshot and swapped in whole, so loader
+ * threads can read it without locking.
+ */
+public class AlbumArtLocator {
+
+    private static final String TAG = "AlbumArtLocator";
+
+    // Before the first load nothing is known, so every album goes to the provider
+    private static final AlbumArtLocator UNKNOWN = new AlbumArtLocator(null, new String[0]);
+
+    private static volatile AlbumArtLocator current = UNKNOWN;
+
+    // Album id -> index into paths; null while unknown
+    private final LongIntMap albums;
+    private final String[] paths;
+
+    private AlbumArtLocator(LongIntMap albums, String[] paths) {
+        this.albums = albums;
+        this.paths = paths;
+    }
+
+    public static AlbumArtLocator getCurrent() {
+        return current;
+    }
+
+    public static void install(AlbumArtLocator locator) {
+        current = locator;
+    }
+
+    /** Reads every album's art path; returns the current locator if the query fails. */
+    public static AlbumArtLocator load(ContentResolver resolver) {
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+                    new String[] { MediaStore.Audio.Albums._ID, MediaStore.Audio.Albums.ALBUM_ART },
+                    null, null, null);
+            if (cursor == null) return current;
+            LongIntMap albums = new LongIntMap(cursor.getCount());
+            ArrayList<String> paths = new ArrayList<String>(cursor.getCount());
+            int withArt = 0;
+            while (cursor.moveToNext()) {
+                String path = cursor.getString(1);
+                if (path != null && path.length() == 0) {
+                    path = null;
+                }
+                if (path != null) {
+                    withArt++;
+                }
+                albums.put(cursor.getLong(0), paths.size());
+                paths.add(path);
+            }
+            Log.i(TAG, "Located art files for " + withArt + " of " + paths.size() + " albums");
+            return new AlbumArtLocator(albums, paths.toArray(new String[paths.size()]));
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading album art paths", e);
+            return current;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Whether a MediaStore album is known to have no art at all. Says
+     * nothing about filesystem songs, whose art is only in their tags.
+     */
+    public boolean hasNoArt(long albumId) {
+        return albumId > 0 && albums != null && albums.get(albumId, -1) < 0;
+    }
+
+    /**
+     * Returns where to read the album's art from, or null if it has none.
+     * {@code albumId} is a {@link Song#getAlbumKey}; filesystem songs read
+     * the picture embedded in {@code path}. A MediaStore art file that has
+     * since disappeared falls back to the provider.
+     */
+    public ArtDecoder.Source sourceFor(ContentResolver resolver, long albumId, String path) {
+        if (albumId < 0) {
+            return path != null ? ArtDecoder.embeddedArt(path) : null;
+        }
+        if (albums == null) {
+            return ArtDecoder.albumArt(resolver, albumId);
+        }
+        int index = albums.get(albumId, -1);
+        if (index < 0) return null;
+        final String artPath = paths[index];
+        final ArtDecoder.Source provider = ArtDecoder.albumArt(resolver, albumId);
+        if (artPath == null) return provider;
+        return new ArtDecoder.Source() {
+            public InputStream open() throws IOException {
+                try {
+                    return new FileInputStream(artPath);
+                } catch (FileNotFoundException e) {
+                    return provider.open();
+                }
+            }
+        };
+    }
+}
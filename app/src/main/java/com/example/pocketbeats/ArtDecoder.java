@@ -0,0 +1,172 @@
+package com.example.pocketbeats;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Bounded album art decoding shared by the thumbnail and player loaders.
+ * The source is opened once: the header is read behind a mark, the sample
+ * size is picked from it, and the same stream is rewound for the decode.
+ * Density scaling then brings the image to the requested size in the same
+ * call, and a pixel cap keeps huge embedded images from being decoded
+ * anywhere near full resolution.
+ */
+public final class ArtDecoder {
+
+    private static final Uri ALBUM_ART_URI = Uri.parse("content://media/external/audio/albumart");
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // Room for the header plus large EXIF blocks ahead of it
+    private static final int MARK_LIMIT = 128 * 1024;
+    // Upper bound on the sampled image, whatever its shape
+    private static final int MAX_DECODE_PIXELS = 1024 * 1024;
+
+    // BitmapFactory's scratch buffer, reused per loader thread
+    private static final ThreadLocal<byte[]> TEMP_STORAGE = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Keeps the mark set by {@link #decode}; BitmapFactory marks the stream
+     * itself with a much smaller limit.
+     */
+    private static class MarkedStream extends BufferedInputStream {
+        private boolean markHeld;
+
+        MarkedStream(InputStream in) {
+            super(in, BUFFER_SIZE);
+        }
+
+        void holdMark(int limit) {
+            super.mark(limit);
+            markHeld = true;
+        }
+
+        public synchronized void mark(int limit) {
+            if (!markHeld) {
+                super.mark(limit);
+            }
+        }
+    }
+
+    private ArtDecoder() {
+    }
+
+    public static Source albumArt(final ContentResolver resolver, long albumId) {
+        final Uri uri = ContentUris.withAppendedId(ALBUM_ART_URI, albumId);
+        return new Source() {
+            public InputStream open() throws IOException {
+                return resolver.openInputStream(uri);
+            }
+        };
+    }
+
+    /**
+     * Art embedded in a file's tags. The picture is extracted once per
+     * source, even if the decode has to open it twice. A file whose tags
+     * cannot be read throws, so it is retried rather than taken as artless.
+     */
+    public static Source embeddedArt(final String path) {
+        return new Source() {
+            private byte[] picture;
+
+            public InputStream open() throws IOException {
+                if (picture == null) {
+                    MediaMetadataRetriever mmr = new MediaMetadataRetriever();
+                    try {
+                        mmr.setDataSource(path);
+                        picture = mmr.getEmbeddedPicture();
+                    } catch (RuntimeException e) {
+                        // Unreadable for now, e.g. storage unmounted; not the same as no picture
+                        throw new IOException("Could not read tags of " + path, e);
+                    } finally {
+                        try { mmr.release(); } catch (RuntimeException ignored) {}
+                    }
+                    if (picture == null) return null;
+                }
+                return new ByteArrayInputStream(picture);
+            }
+        };
+    }
+
+    /**
+     * Decodes art so its shorter side is about {@code targetSize}, never
+     * upscaling. Uses {@code config} if given, otherwise RGB565 for JPEG and
+     * the decoder's default for anything that may have alpha. Returns null
+     * if there is no decodable image.
+     */
+    public static Bitmap decode(Source source, int targetSize, Bitmap.Config config)
+            throws IOException {
+        InputStream raw = source.open();
+        if (raw == null) return null;
+        MarkedStream in = new MarkedStream(raw);
+        try {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inTempStorage = TEMP_STORAGE.get();
+            opts.inJustDecodeBounds = true;
+            in.holdMark(MARK_LIMIT);
+            BitmapFactory.decodeStream(in, null, opts);
+            int width = opts.outWidth;
+            int height = opts.outHeight;
+            if (width <= 0 || height <= 0) return null;
+
+            try {
+                in.reset();
+            } catch (IOException e) {
+                // The header ran past the mark; rare enough to just open again
+                in.close();
+                raw = source.open();
+                if (raw == null) return null;
+                in = new MarkedStream(raw);
+            }
+
+            int sampleSize = 1;
+            while (Math.min(width, height) / (sampleSize * 2) >= targetSize) {
+                sampleSize *= 2;
+            }
+            while ((long) (width / sampleSize) * (height / sampleSize) > MAX_DECODE_PIXELS) {
+                sampleSize *= 2;
+            }
+
+            opts.inJustDecodeBounds = false;
+            opts.inSampleSize = sampleSize;
+            if (config != null) {
+                opts.inPreferredConfig = config;
+            } else if ("image/jpeg".equals(opts.outMimeType)) {
+                opts.inPreferredConfig = Bitmap.Config.RGB_565;
+            }
+            // Let the decoder scale the sampled image the rest of the way
+            int sampledShort = Math.min(width, height) / sampleSize;
+            boolean scaled = sampledShort > targetSize;
+            if (scaled) {
+                opts.inScaled = true;
+                opts.inDensity = sampledShort;
+                opts.inTargetDensity = targetSize;
+            }
+            Bitmap bitmap = BitmapFactory.decodeStream(in, null, opts);
+            if (bitmap != null && scaled) {
+                // Undo the made-up density so views size it like any other image
+                bitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+            }
+            return bitmap;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.example.pocketbeats;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Loads list thumbnails on a fixed pair of background threads. Pending
+ * work is a stack, so the rows that just scrolled into view are decoded
+ * first; once too much is queued the oldest requests are dropped. All
+ * requests for one album share a single decode, and a request cancelled
+ * before its decode starts costs nothing. Decoded thumbnails are kept in
+ * the {@link ThumbnailStore}, so art is only decoded once per album.
+ *
+ * Decoding pauses while the list is flinging, and prefetches for rows just
+ * past the viewport queue behind everything that is on screen.
+ *
+ * {@link #load} and {@link Request#cancel} are called on the main thread,
+ * and callbacks are delivered there.
+ */
+public class ArtLoader {
+
+    private static final int WORKER_COUNT = 2;
+    // Anything older belongs to rows that have long left the screen
+    private static final int MAX_PENDING = 32;
+    private static final int MAX_PREFETCH = 8;
+    private static final int THUMB_SIZE = ThumbnailStore.SIZE;
+
+    /** Results of {@link #decodeThumbnail}. */
+    static final int DECODED = 0;
+    static final int NO_IMAGE = 1;
+    static final int FAILED = 2;
+
+    private static ArtLoader instance;
+
+    private final ContentResolver resolver;
+    private final ThumbnailStore store;
+    private final AlbumArtCache cache;
+    private final BitmapPool pool = BitmapPool.getInstance();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LinkedBlockingDeque<Job> queue = new LinkedBlockingDeque<Job>();
+    // Queued or decoding jobs by album; guarded by this
+    private final HashMap<Long, Job> jobs = new HashMap<Long, Job>();
+    // Guarded by this
+    private boolean paused;
+
+    public interface Callback {
+        /**
+         * The thumbnail is now in the {@link AlbumArtCache} unless
+         * {@code hasArt} is false, which is also what requests dropped from
+         * a full queue get.
+         */
+        void onArtLoaded(long albumId, boolean hasArt);
+    }
+
+    public class Request {
+        private final Job job;
+        private final Callback callback;
+        private boolean cancelled;
+
+        Request(Job job, Callback callback) {
+            this.job = job;
+            this.callback = callback;
+        }
+
+        /** Drops this request, e.g. when its row is rebound to another song. */
+        public void cancel() {
+            synchronized (ArtLoader.this) {
+                cancelled = true;
+                job.requests.remove(this);
+                if (job.requests.isEmpty() && !job.started) {
+                    queue.remove(job);
+                    // A dropped job may have been replaced by a newer one for the album
+                    if (jobs.get(job.albumId) == job) {
+                        jobs.remove(job.albumId);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Job {
+        // Song.getAlbumKey(): negative for filesystem songs
+        final long albumId;
+        // A file of the album, for art embedded in its tags
+        final String path;
+        final ArrayList<Request> requests = new ArrayList<Request>(2);
+        // Runs without requests, just to warm the cache
+        boolean prefetch;
+        boolean started;
+
+        Job(long albumId, String path) {
+            this.albumId = albumId;
+            this.path = path;
+        }
+    }
+
+    private ArtLoader(Context context) {
+        resolver = context.getApplicationContext().getContentResolver();
+        store = ThumbnailStore.getInstance(context);
+        cache = AlbumArtCache.getInstance(context);
+        for (int i = 0; i < WORKER_COUNT; i++) {
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runWorker();
+                }
+            }, "ArtLoader-" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    public static synchronized ArtLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new ArtLoader(context);
+        }
+        return instance;
+    }
+
+    /** Queues a thumbnail load, joining any pending load of the same album. */
+    public synchronized Request load(Song song, Callback callback) {
+        long albumId = song.getAlbumKey();
+        Job job = jobs.get(albumId);
+        if (job == null) {
+            job = new Job(albumId, song.getPath());
+            jobs.put(albumId, job);
+            queue.offerFirst(job);
+            while (queue.size() > MAX_PENDING) {
+                final Job dropped = queue.pollLast();
+                if (dropped != null) {
+                    if (jobs.get(dropped.albumId) == dropped) {
+                        jobs.remove(dropped.albumId);
+                    }
+                    // Let its rows stop waiting; they keep the placeholder
+                    mainHandler.post(new Runnable() {
+                        public void run() {
+                            deliver(dropped, false);
+                        }
+                    });
+                }
+            }
+        } else if (!job.started && queue.remove(job)) {
+            // Asked for again: it is on screen now, so move it to the front
+            queue.offerFirst(job);
+        }
+        Request request = new Request(job, callback);
+        job.requests.add(request);
+        return request;
+    }
+
+    /**
+     * Queues a low-priority load with no callback, behind everything already
+     * requested. Does nothing if the art is known or already on its way.
+     */
+    public synchronized void prefetch(Song song) {
+        long albumId = song.getAlbumKey();
+        if (jobs.containsKey(albumId) || cache.contains(albumId)
+                || AlbumArtLocator.getCurrent().hasNoArt(albumId)) {
+            return;
+        }
+        int prefetches = 0;
+        for (Job queued : queue) {
+            if (queued.prefetch) prefetches++;
+        }
+        if (prefetches >= MAX_PREFETCH || queue.size() >= MAX_PENDING) return;
+        Job job = new Job(albumId, song.getPath());
+        job.prefetch = true;
+        jobs.put(albumId, job);
+        queue.offerLast(job);
+    }
+
+    /** Drops queued prefetches nobody has asked for since, e.g. when the list moves again. */
+    public synchronized void cancelPrefetches() {
+        Iterator<Job> it = queue.iterator();
+        while (it.hasNext()) {
+            Job job = it.next();
+            if (job.prefetch && job.requests.isEmpty()) {
+                it.remove();
+                jobs.remove(job.albumId);
+            }
+        }
+    }
+
+    /** While paused, queued work waits; requests still coalesce and cancel. */
+    public synchronized void setPaused(boolean paused) {
+        this.paused = paused;
+        if (!paused) {
+            notifyAll();
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            final Job job;
+            try {
+                synchronized (this) {
+                    while (paused) {
+                        wait();
+                    }
+                }
+                job = queue.takeFirst();
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                if (paused) {
+                    // Taken while blocked, just as a fling began: back on top until it ends
+                    queue.offerFirst(job);
+                    continue;
+                }
+                if (job.requests.isEmpty() && !job.prefetch) {
+                    if (jobs.get(job.albumId) == job) {
+                        jobs.remove(job.albumId);
+                    }
+                    continue;
+                }
+                job.started = true;
+            }
+
+            final boolean hasArt = loadThumbnail(job.albumId, job.path);
+            mainHandler.post(new Runnable() {
+                public void run() {
+                    deliver(job, hasArt);
+                }
+            });
+        }
+    }
+
+    private void deliver(Job job, boolean hasArt) {
+        Request[] requests;
+        synchronized (this) {
+            if (jobs.get(job.albumId) == job) {
+                jobs.remove(job.albumId);
+            }
+            requests = job.requests.toArray(new Request[job.requests.size()]);
+            job.requests.clear();
+        }
+        for (int i = 0; i < requests.length; i++) {
+            if (!requests[i].cancelled) {
+                requests[i].callback.onArtLoaded(job.albumId, hasArt);
+            }
+        }
+    }
+
+    /**
+     * Makes sure the album's thumbnail is in the {@link AlbumArtCache},
+     * reading it from the store or decoding it. Returns false if the album
+     * has no art.
+     */
+    private boolean loadThumbnail(long albumId, String path) {
+        if (cache.contains(albumId)) {
+            return !cache.isNoArt(albumId);
+        }
+        ArtDecoder.Source source = AlbumArtLocator.getCurrent().sourceFor(resolver, albumId, path);
+        if (source == null) {
+            cache.putNoArt(albumId);
+            return false;
+        }
+        ByteBuffer pixels = pool.acquireBuffer();
+        if (store.read(albumId, pixels)) {
+            cache.putThumb(albumId, pixels);
+            return true;
+        }
+
+        int result = decodeThumbnail(source, pixels);
+        if (result != DECODED) {
+            pool.releaseBuffer(pixels);
+            if (result == NO_IMAGE) {
+                cache.putNoArt(albumId);
+            }
+            return false;
+        }
+        store.put(albumId, pixels);
+        cache.putThumb(albumId, pixels);
+        return true;
+    }
+
+    /**
+     * Decodes art into {@code pixels} in the {@link ThumbnailStore} slot
+     * format. Returns {@link #DECODED}, {@link #NO_IMAGE} if there is nothing
+     * to decode or the source does not exist, or {@link #FAILED} if the source
+     * could not be read or the pixels could not be converted.
+     */
+    static int decodeThumbnail(ArtDecoder.Source source, ByteBuffer pixels) {
+        Bitmap scaled;
+        try {
+            scaled = ArtDecoder.decode(source, THUMB_SIZE, Bitmap.Config.RGB_565);
+        } catch (FileNotFoundException e) {
+            // What the provider answers for an album without art
+            return NO_IMAGE;
+        } catch (IOException e) {
+            // Possibly transient, e.g. storage unmounted; not worth remembering
+            return FAILED;
+        } catch (RuntimeException e) {
+            return FAILED;
+        }
+
+        if (scaled == null) return NO_IMAGE;
+        // Square art already comes out at the thumbnail size
+        if (scaled.getWidth() != THUMB_SIZE || scaled.getHeight() != THUMB_SIZE) {
+            Bitmap resized = Bitmap.createScaledBitmap(scaled, THUMB_SIZE, THUMB_SIZE, true);
+            if (resized != scaled) {
+                scaled.recycle();
+                scaled = resized;
+            }
+        }
+        if (scaled.getConfig() != Bitmap.Config.RGB_565) {
+            Bitmap converted = scaled.copy(Bitmap.Config.RGB_565, false);
+            scaled.recycle();
+            if (converted == null) return FAILED;
+            scaled = converted;
+        }
+        pixels.clear();
+        scaled.copyPixelsToBuffer(pixels);
+        scaled.recycle();
+        return DECODED;
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.pocketbeats;
+
+import android.graphics.Bitmap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted bitmap shared between {@link AlbumArtCache} and the
+ * views showing it. The cache holds one reference while the bitmap is
+ * cached and each view holds one while it is on screen; the bitmap is
+ * recycled when the last of them lets go, never while a view can draw it.
+ */
+public final class BitmapHandle {
+
+    private final Bitmap bitmap;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /** Starts with the creator's reference. */
+    BitmapHandle(Bitmap bitmap) {
+        this.bitmap = bitmap;
+    }
+
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    /** Adds a reference; fails if the bitmap has already been recycled. */
+    public boolean retain() {
+        while (true) {
+            int n = refs.get();
+            if (n == 0) return false;
+            if (refs.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    /** Drops a reference; the view must stop showing the bitmap first. */
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            bitmap.recycle();
+        }
+    }
+}
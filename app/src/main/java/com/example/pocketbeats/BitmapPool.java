@@ -0,0 +1,68 @@
+package com.example.pocketbeats;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Recycles the two kinds of thumbnail memory: {@link ThumbnailStore#SIZE}px
+ * RGB565 bitmaps owned by list rows, and direct pixel buffers of the same
+ * layout owned by {@link AlbumArtCache}. Rows copy cached pixels into their
+ * own bitmap, so once the pool is warm, scrolling allocates neither.
+ *
+ * Buffer contents and positions are unspecified on acquire; rewind before
+ * copying pixels in or out.
+ */
+public class BitmapPool {
+
+    // Enough for a screenful of rows plus the loader's in-flight buffers
+    private static final int MAX_FREE_BITMAPS = 24;
+    private static final int MAX_FREE_BUFFERS = 32;
+
+    private static BitmapPool instance;
+
+    private final ArrayList<Bitmap> freeBitmaps = new ArrayList<Bitmap>(MAX_FREE_BITMAPS);
+    private final ArrayList<ByteBuffer> freeBuffers = new ArrayList<ByteBuffer>(MAX_FREE_BUFFERS);
+
+    public static synchronized BitmapPool getInstance() {
+        if (instance == null) {
+            instance = new BitmapPool();
+        }
+        return instance;
+    }
+
+    /**
+     * Most recently released first, so a row that is scrapped and rebound
+     * straight away usually gets its own bitmap back.
+     */
+    public synchronized Bitmap acquireBitmap() {
+        int n = freeBitmaps.size();
+        if (n > 0) {
+            return freeBitmaps.remove(n - 1);
+        }
+        return Bitmap.createBitmap(ThumbnailStore.SIZE, ThumbnailStore.SIZE, Bitmap.Config.RGB_565);
+    }
+
+    public synchronized void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        if (freeBitmaps.size() < MAX_FREE_BITMAPS) {
+            freeBitmaps.add(bitmap);
+        }
+    }
+
+    public synchronized ByteBuffer acquireBuffer() {
+        int n = freeBuffers.size();
+        if (n > 0) {
+            return freeBuffers.remove(n - 1);
+        }
+        return ByteBuffer.allocateDirect(ThumbnailStore.SLOT_BYTES);
+    }
+
+    public synchronized void releaseBuffer(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != ThumbnailStore.SLOT_BYTES) return;
+        if (freeBuffers.size() < MAX_FREE_BUFFERS) {
+            freeBuffers.add(buffer);
+        }
+    }
+}
@@ -5,14 +5,18 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import java.util.List;
 
-public class CategoryAdapter extends ArrayAdapter<String> {
+public class CategoryAdapter extends ArrayAdapter<String> implements SectionIndexer {
 
     private final LayoutInflater inflater;
     private List<Integer> counts;
+    private List<Long> durations;
+    private List<String> details;
+    private SectionIndex sections = SectionIndex.NONE;
 
     public CategoryAdapter(Context context, List<String> names, List<Integer> counts) {
         super(context, R.layout.item_category, names);
@@ -24,6 +28,31 @@ public class CategoryAdapter extends ArrayAdapter<String> {
         this.counts = counts;
     }
 
+    public void setDurations(List<Long> durations) {
+        this.durations = durations;
+    }
+
+    public void setDetails(List<String> details) {
+        this.details = details;
+    }
+
+    /** Sections must describe the list currently backing the adapter. */
+    public void setSections(SectionIndex sections) {
+        this.sections = sections != null ? sections : SectionIndex.NONE;
+    }
+
+    public Object[] getSections() {
+        return sections.getSections();
+    }
+
+    public int getPositionForSection(int section) {
+        return sections.getPositionForSection(section);
+    }
+
+    public int getSectionForPosition(int position) {
+        return sections.getSectionForPosition(position);
+    }
+
     public View getView(int position, View convertView, ViewGroup parent) {
         ViewHolder holder;
         if (convertView == null) {
@@ -41,11 +70,17 @@ public class CategoryAdapter extends ArrayAdapter<String> {
 
         if (counts != null && position < counts.size()) {
             int c = counts.get(position);
-            if (c == 1) {
-                holder.count.setText("1 song");
-            } else {
-                holder.count.setText(c + " songs");
+            String text = c == 1 ? "1 song" : c + " songs";
+            if (details != null && position < details.size() && details.get(position) != null) {
+                text = details.get(position) + " \u2022 " + text;
             }
+            if (durations != null && position < durations.size()) {
+                long millis = durations.get(position);
+                if (millis > 0) {
+                    text = text + " \u2022 " + formatDuration(millis);
+                }
+            }
+            holder.count.setText(text);
             holder.count.setVisibility(View.VISIBLE);
         } else {
             holder.count.setVisibility(View.GONE);
@@ -54,6 +89,14 @@ public class CategoryAdapter extends ArrayAdapter<String> {
         return convertView;
     }
 
+    private String formatDuration(long millis) {
+        int totalMinutes = (int) ((millis + 30000) / 60000);
+        if (totalMinutes < 60) {
+            return totalMinutes + " min";
+        }
+        return (totalMinutes / 60) + " hr " + (totalMinutes % 60) + " min";
+    }
+
     private static class ViewHolder {
         TextView name;
         TextView count;
@@ -0,0 +1,40 @@
+package com.example.pocketbeats;
+
+/**
+ * Precomputed sort keys. Keys are lowercase, skip leading punctuation and
+ * drop a leading English article, so "The Beatles" files under B. Keys are
+ * compared with plain {@link String#compareTo}.
+ */
+public class CollationKeys {
+
+    private static final String[] ARTICLES = { "the ", "an ", "a " };
+
+    private CollationKeys() {
+    }
+
+    public static String of(String value) {
+        if (value == null) return "";
+        String lower = value.toLowerCase();
+        int start = skipPunctuation(lower, 0);
+        for (int i = 0; i < ARTICLES.length; i++) {
+            String article = ARTICLES[i];
+            if (lower.startsWith(article, start)) {
+                int rest = skipPunctuation(lower, start + article.length());
+                // Keep "The" itself, or "A" as in "A-ha", when nothing follows
+                if (rest < lower.length()) {
+                    start = rest;
+                }
+                break;
+            }
+        }
+        return start == 0 ? lower : lower.substring(start);
+    }
+
+    private static int skipPunctuation(String s, int from) {
+        int i = from;
+        while (i < s.length() && !Character.isLetterOrDigit(s.charAt(i))) {
+            i++;
+        }
+        return i < s.length() ? i : from;
+    }
+}
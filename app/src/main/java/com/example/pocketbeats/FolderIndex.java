@@ -0,0 +1,261 @@
+package com.example.pocketbeats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Directory tree over the library's file paths. Songs are put in folder
+ * order: a folder's own files first, then each subfolder in turn, so the
+ * whole subtree of any folder is one contiguous range of {@link #getSongs()}
+ * and playing it hands out a view of that range instead of a copy.
+ *
+ * Folders are numbered depth-first while the tree is built, with song
+ * counts and durations aggregated per folder. A folder's child list is
+ * only materialized the first time it is opened, in O(children).
+ */
+public class FolderIndex {
+
+    public static final FolderIndex EMPTY = build(new ArrayList<Song>());
+
+    // Sort key separators; all sort below any character found in a name
+    private static final char FILES = '\u0000';
+    private static final char FOLDER = '\u0001';
+    private static final char ORIGINAL = '\u0002';
+
+    private static final int[] NO_CHILDREN = new int[0];
+
+    private final List<Song> songs;
+    // durationSums[i] is the total duration of songs[0 .. i - 1]
+    private final long[] durationSums;
+
+    // Per folder; folder 0 is the filesystem root
+    private final String[] names;
+    private final String[] paths;
+    private final int[] parents;
+    private final int[] starts;
+    private final int[] directEnds;
+    private final int[] ends;
+    // First folder number after this folder's subtree
+    private final int[] subtreeEnds;
+    // Filled on first open; only touched by the UI thread
+    private final int[][] children;
+
+    private FolderIndex(Song[] songs, long[] durationSums, String[] names, String[] paths,
+                        int[] parents, int[] starts, int[] directEnds, int[] ends,
+                        int[] subtreeEnds) {
+        this.songs = Collections.unmodifiableList(Arrays.asList(songs));
+        this.durationSums = durationSums;
+        this.names = names;
+        this.paths = paths;
+        this.parents = parents;
+        this.starts = starts;
+        this.directEnds = directEnds;
+        this.ends = ends;
+        this.subtreeEnds = subtreeEnds;
+        this.children = new int[names.length][];
+    }
+
+    public static FolderIndex build(List<Song> source) {
+        int n = source.size();
+        String[] keys = new String[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = sortKey(source.get(i).getPath());
+        }
+        int[] order = IndexSort.sort(keys);
+
+        Song[] sorted = new Song[n];
+        long[] durationSums = new long[n + 1];
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<String> paths = new ArrayList<String>();
+        IntList parents = new IntList();
+        IntList starts = new IntList();
+        IntList directEnds = new IntList();
+        IntList ends = new IntList();
+        IntList subtreeEnds = new IntList();
+
+        // Folders still open on the current depth-first path, root first
+        IntList stack = new IntList();
+        addFolder("/", "", -1, 0, names, paths, parents, starts, directEnds, ends, subtreeEnds);
+        stack.add(0);
+
+        for (int i = 0; i < n; i++) {
+            Song song = source.get(order[i]);
+            sorted[i] = song;
+            durationSums[i + 1] = durationSums[i] + song.getDuration();
+
+            String dir = directoryOf(song.getPath());
+            int top = stack.get(stack.size() - 1);
+            while (!isWithin(dir, paths.get(top))) {
+                closeFolder(stack.removeLast(), i, names.size(), ends, subtreeEnds);
+                top = stack.get(stack.size() - 1);
+            }
+            // Open the folders between the innermost open one and this song
+            while (!dir.equals(paths.get(top))) {
+                String parentPath = paths.get(top);
+                int from = parentPath.length() == 0 ? (dir.startsWith("/") ? 1 : 0)
+                        : parentPath.length() + 1;
+                int to = dir.indexOf('/', from);
+                if (to < 0) to = dir.length();
+                int folder = addFolder(dir.substring(from, to), dir.substring(0, to), top, i,
+                        names, paths, parents, starts, directEnds, ends, subtreeEnds);
+                stack.add(folder);
+                top = folder;
+            }
+            // Direct files sort first, so they extend the folder's direct run
+            directEnds.set(top, i + 1);
+        }
+        while (stack.size() > 0) {
+            closeFolder(stack.removeLast(), n, names.size(), ends, subtreeEnds);
+        }
+
+        return new FolderIndex(sorted, durationSums, names.toArray(new String[names.size()]),
+                paths.toArray(new String[paths.size()]), parents.toArray(), starts.toArray(),
+                directEnds.toArray(), ends.toArray(), subtreeEnds.toArray());
+    }
+
+    private static int addFolder(String name, String path, int parent, int start,
+                                 ArrayList<String> names, ArrayList<String> paths,
+                                 IntList parents, IntList starts, IntList directEnds,
+                                 IntList ends, IntList subtreeEnds) {
+        int folder = names.size();
+        names.add(name);
+        paths.add(path);
+        parents.add(parent);
+        starts.add(start);
+        directEnds.add(start);
+        ends.add(start);
+        subtreeEnds.add(folder + 1);
+        return folder;
+    }
+
+    private static void closeFolder(int folder, int end, int folderCount,
+                                    IntList ends, IntList subtreeEnds) {
+        ends.set(folder, end);
+        subtreeEnds.set(folder, folderCount);
+    }
+
+    private static String directoryOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash > 0 ? path.substring(0, slash) : "";
+    }
+
+    private static boolean isWithin(String dir, String folder) {
+        if (folder.length() == 0) return true;
+        return dir.startsWith(folder)
+                && (dir.length() == folder.length() || dir.charAt(folder.length()) == '/');
+    }
+
+    /**
+     * Each folder name becomes FOLDER + lowercase + ORIGINAL + name, and the
+     * file name is appended after FILES. Names order case-insensitively, and
+     * every folder's subtree shares its key prefix, so it sorts contiguously.
+     */
+    private static String sortKey(String path) {
+        StringBuilder key = new StringBuilder(path.length() * 2 + 8);
+        int from = path.startsWith("/") ? 1 : 0;
+        int slash;
+        while ((slash = path.indexOf('/', from)) >= 0) {
+            String name = path.substring(from, slash);
+            key.append(FOLDER).append(name.toLowerCase()).append(ORIGINAL).append(name);
+            from = slash + 1;
+        }
+        String file = path.substring(from);
+        key.append(FILES).append(file.toLowerCase()).append(ORIGINAL).append(file);
+        return key.toString();
+    }
+
+    /** All songs in folder order; read-only. */
+    public List<Song> getSongs() {
+        return songs;
+    }
+
+    /**
+     * The folder to show first: the root with any chain of single-child,
+     * file-less folders (/mnt/sdcard/Music) skipped.
+     */
+    public int getRoot() {
+        int folder = 0;
+        while (directEnds[folder] == starts[folder]) {
+            int[] kids = getChildren(folder);
+            if (kids.length != 1) break;
+            folder = kids[0];
+        }
+        return folder;
+    }
+
+    public int getParent(int folder) {
+        return parents[folder];
+    }
+
+    public String getName(int folder) {
+        return names[folder];
+    }
+
+    public String getPath(int folder) {
+        return paths[folder];
+    }
+
+    /** Songs in the folder and all its subfolders. */
+    public int getSongCount(int folder) {
+        return ends[folder] - starts[folder];
+    }
+
+    public int getDirectSongCount(int folder) {
+        return directEnds[folder] - starts[folder];
+    }
+
+    public long getTotalDuration(int folder) {
+        return durationSums[ends[folder]] - durationSums[starts[folder]];
+    }
+
+    public long getDirectDuration(int folder) {
+        return durationSums[directEnds[folder]] - durationSums[starts[folder]];
+    }
+
+    /** The folder's whole subtree, as a view. */
+    public List<Song> getSubtreeSongs(int folder) {
+        return songs.subList(starts[folder], ends[folder]);
+    }
+
+    /** Only the files directly inside the folder, as a view. */
+    public List<Song> getDirectSongs(int folder) {
+        return songs.subList(starts[folder], directEnds[folder]);
+    }
+
+    /** Subfolders in name order; built on first call, then cached. */
+    public int[] getChildren(int folder) {
+        int[] kids = children[folder];
+        if (kids == null) {
+            IntList list = new IntList(4);
+            int end = subtreeEnds[folder];
+            // Each child's subtree is a block of folder numbers; hop block to block
+            for (int child = folder + 1; child < end; child = subtreeEnds[child]) {
+                list.add(child);
+            }
+            kids = list.size() == 0 ? NO_CHILDREN : list.toArray();
+            children[folder] = kids;
+        }
+        return kids;
+    }
+
+    /** Folder with this path, or -1; walks down from the root. */
+    public int find(String path) {
+        if (path == null) return -1;
+        int folder = 0;
+        while (!paths[folder].equals(path)) {
+            int next = -1;
+            int[] kids = getChildren(folder);
+            for (int i = 0; i < kids.length; i++) {
+                if (isWithin(path, paths[kids[i]])) {
+                    next = kids[i];
+                    break;
+                }
+            }
+            if (next < 0) return -1;
+            folder = next;
+        }
+        return folder;
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.pocketbeats;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Decodes player-sized album art on one background thread into the
+ * full-size tier of {@link AlbumArtCache}. Requested art goes to the front
+ * of the queue; prefetches for upcoming tracks go to the back and are
+ * bounded, so they never hold up what is on screen.
+ *
+ * {@link #load}, {@link #prefetch} and {@link #cancel} are called on the
+ * main thread, and callbacks are delivered there.
+ */
+public class FullArtLoader {
+
+    private static final String TAG = "FullArtLoader";
+
+    private static final int MAX_FULL_SIZE = 480;
+    private static final int MAX_PREFETCH = 2;
+
+    private static FullArtLoader instance;
+
+    private final ContentResolver resolver;
+    private final AlbumArtCache cache;
+    // Art never needs more pixels than the screen's short side
+    private final int fullSize;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LinkedBlockingDeque<Job> queue = new LinkedBlockingDeque<Job>();
+    // Queued or decoding jobs by album; guarded by this
+    private final HashMap<Long, Job> jobs = new HashMap<Long, Job>();
+
+    public interface Callback {
+        /**
+         * {@code art} is null if the album has no art; otherwise the
+         * callback owns a reference to it and must release it.
+         */
+        void onFullArtLoaded(long albumId, BitmapHandle art);
+    }
+
+    private static class Job {
+        // Song.getAlbumKey(): negative for filesystem songs
+        final long albumId;
+        // A file of the album, for art embedded in its tags
+        final String path;
+        final ArrayList<Callback> callbacks = new ArrayList<Callback>(1);
+        boolean started;
+
+        Job(long albumId, String path) {
+            this.albumId = albumId;
+            this.path = path;
+        }
+    }
+
+    private FullArtLoader(Context context) {
+        resolver = context.getApplicationContext().getContentResolver();
+        cache = AlbumArtCache.getInstance(context);
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        fullSize = Math.min(MAX_FULL_SIZE, Math.min(metrics.widthPixels, metrics.heightPixels));
+        Thread worker = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runWorker();
+            }
+        }, "FullArtLoader");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public static synchronized FullArtLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new FullArtLoader(context);
+        }
+        return instance;
+    }
+
+    /** Decodes the album's art ahead of everything else already queued. */
+    public synchronized void load(Song song, Callback callback) {
+        long albumId = song.getAlbumKey();
+        Job job = jobs.get(albumId);
+        if (job == null) {
+            job = new Job(albumId, song.getPath());
+            jobs.put(albumId, job);
+            queue.offerFirst(job);
+        } else if (!job.started && queue.remove(job)) {
+            // A prefetch that is now wanted on screen
+            queue.offerFirst(job);
+        }
+        job.callbacks.add(callback);
+    }
+
+    /** Queues a decode with no callback unless the art is already known. */
+    public synchronized void prefetch(Song song) {
+        long albumId = song.getAlbumKey();
+        if (jobs.containsKey(albumId) || cache.containsFull(albumId) || cache.isNoArt(albumId)) {
+            return;
+        }
+        Job job = new Job(albumId, song.getPath());
+        jobs.put(albumId, job);
+        queue.offerLast(job);
+        // Keep only the nearest upcoming prefetches; requested loads sit in front
+        int prefetches = 0;
+        for (Job queued : queue) {
+            if (queued.callbacks.isEmpty()) prefetches++;
+        }
+        while (prefetches > MAX_PREFETCH) {
+            Job dropped = null;
+            for (Job queued : queue) {
+                if (queued.callbacks.isEmpty()) {
+                    dropped = queued;
+                    break;
+                }
+            }
+            if (dropped == null) break;
+            queue.remove(dropped);
+            jobs.remove(dropped.albumId);
+            prefetches--;
+        }
+    }
+
+    /** Stops {@code callback} from receiving results; its decodes still warm the cache. */
+    public synchronized void cancel(Callback callback) {
+        for (Job job : jobs.values()) {
+            job.callbacks.remove(callback);
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            final Job job;
+            try {
+                job = queue.takeFirst();
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                job.started = true;
+            }
+
+            final BitmapHandle art = loadFull(job.albumId, job.path);
+            mainHandler.post(new Runnable() {
+                public void run() {
+                    deliver(job, art);
+                }
+            });
+        }
+    }
+
+    /** Hands each callback its own reference, then drops the loader's. */
+    private void deliver(Job job, BitmapHandle art) {
+        Callback[] callbacks;
+        synchronized (this) {
+            if (jobs.get(job.albumId) == job) {
+                jobs.remove(job.albumId);
+            }
+            callbacks = job.callbacks.toArray(new Callback[job.callbacks.size()]);
+            job.callbacks.clear();
+        }
+        for (int i = 0; i < callbacks.length; i++) {
+            if (art != null) {
+                // Cannot fail while the loader still holds its own reference
+                art.retain();
+            }
+            callbacks[i].onFullArtLoaded(job.albumId, art);
+        }
+        if (art != null) {
+            art.release();
+        }
+    }
+
+    /** Returns the art with a reference for the caller, or null if there is none. */
+    private BitmapHandle loadFull(long albumId, String path) {
+        BitmapHandle cached = cache.acquireFull(albumId);
+        if (cached != null || cache.isNoArt(albumId)) {
+            return cached;
+        }
+
+        ArtDecoder.Source source = AlbumArtLocator.getCurrent().sourceFor(resolver, albumId, path);
+        if (source == null) {
+            cache.putNoArt(albumId);
+            return null;
+        }
+        Bitmap result;
+        try {
+            result = ArtDecoder.decode(source, fullSize, null);
+        } catch (FileNotFoundException e) {
+            // What the provider answers for an album without art
+            result = null;
+        } catch (IOException e) {
+            // Possibly transient, e.g. storage unmounted; try again next time
+            Log.w(TAG, "Could not read album art for albumId=" + albumId, e);
+            return null;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not decode album art for albumId=" + albumId, e);
+            return null;
+        }
+
+        if (result == null) {
+            cache.putNoArt(albumId);
+            return null;
+        }
+        return cache.putFull(albumId, result);
+    }
+}
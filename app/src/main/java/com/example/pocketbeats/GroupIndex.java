@@ -0,0 +1,253 @@
+package com.example.pocketbeats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Songs grouped by a category value (artist, album, ...) for one snapshot.
+ * Groups are sorted by collation key; each holds its song count, total
+ * duration and a compact member slice of snapshot indices, so listing the
+ * groups and opening one never rescans the library.
+ *
+ * Groups are keyed either by name or by a primitive long id. Id-keyed groups
+ * (albums) may share a display name and carry a detail line to tell them apart.
+ */
+public class GroupIndex {
+
+    public static final GroupIndex EMPTY = new Builder().build(new ArrayList<Song>());
+
+    private final String[] names;
+    private final String[] details;
+    private final long[] keys;
+    private final String[] lowerNames;
+    private final long[] durations;
+    // Members of group g are members[offsets[g]] .. members[offsets[g + 1] - 1]
+    private final int[] offsets;
+    private final int[] members;
+    private final HashMap<String, Integer> groupsByName;
+    private final LongIntMap groupsByKey;
+    private final SectionIndex sections;
+
+    private GroupIndex(String[] names, String[] details, long[] keys, long[] durations,
+                       int[] offsets, int[] members, SectionIndex sections) {
+        this.names = names;
+        this.details = details;
+        this.keys = keys;
+        this.durations = durations;
+        this.offsets = offsets;
+        this.members = members;
+        this.sections = sections;
+        this.lowerNames = new String[names.length];
+        this.groupsByName = new HashMap<String, Integer>(names.length * 2);
+        this.groupsByKey = new LongIntMap(names.length);
+        for (int g = 0; g < names.length; g++) {
+            lowerNames[g] = names[g].toLowerCase();
+            if (!groupsByName.containsKey(names[g])) {
+                groupsByName.put(names[g], g);
+            }
+            if (keys[g] != 0) {
+                groupsByKey.put(keys[g], g);
+            }
+        }
+    }
+
+    /**
+     * Collects members in the order they are added; callers add songs in
+     * the order they should appear inside each group.
+     */
+    public static class Builder {
+        private final HashMap<String, Integer> nameIds = new HashMap<String, Integer>();
+        private final LongIntMap keyIds = new LongIntMap();
+        private final ArrayList<String> names = new ArrayList<String>();
+        private final ArrayList<String> details = new ArrayList<String>();
+        private final ArrayList<IntList> lists = new ArrayList<IntList>();
+        private long[] keys = new long[16];
+        private boolean decadeSections;
+
+        /** Labels sections by the decade of each group's key, which must be a year. */
+        public void setDecadeSections(boolean decadeSections) {
+            this.decadeSections = decadeSections;
+        }
+
+        /** Groups by display name. */
+        public void add(String name, int song) {
+            Integer id = nameIds.get(name);
+            if (id == null) {
+                id = newGroup(0, name, null);
+                nameIds.put(name, id);
+            }
+            lists.get(id).add(song);
+        }
+
+        /** Groups by id; name and detail are taken from the first song added. */
+        public void add(long key, String name, String detail, int song) {
+            int id = keyIds.get(key, -1);
+            if (id < 0) {
+                id = newGroup(key, name, detail);
+                keyIds.put(key, id);
+            }
+            lists.get(id).add(song);
+        }
+
+        /**
+         * Appends the groups of a builder that covered the songs after this
+         * one's, so merged member lists keep their order.
+         */
+        public void addAll(Builder other) {
+            for (int g = 0; g < other.names.size(); g++) {
+                long key = other.keys[g];
+                String name = other.names.get(g);
+                int id;
+                if (key != 0) {
+                    id = keyIds.get(key, -1);
+                    if (id < 0) {
+                        id = newGroup(key, name, other.details.get(g));
+                        keyIds.put(key, id);
+                    }
+                } else {
+                    Integer existing = nameIds.get(name);
+                    if (existing != null) {
+                        id = existing;
+                    } else {
+                        id = newGroup(0, name, null);
+                        nameIds.put(name, id);
+                    }
+                }
+                lists.get(id).addAll(other.lists.get(g));
+            }
+        }
+
+        private int newGroup(long key, String name, String detail) {
+            int id = names.size();
+            if (id == keys.length) {
+                keys = Arrays.copyOf(keys, id * 2);
+            }
+            keys[id] = key;
+            names.add(name);
+            details.add(detail);
+            lists.add(new IntList(4));
+            return id;
+        }
+
+        public GroupIndex build(List<Song> songs) {
+            int count = names.size();
+            String[] sortKeys = new String[count];
+            for (int i = 0; i < count; i++) {
+                sortKeys[i] = CollationKeys.of(names.get(i));
+            }
+            int[] order = IndexSort.sort(sortKeys);
+
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                total += lists.get(i).size();
+            }
+            String[] sortedNames = new String[count];
+            String[] sortedDetails = new String[count];
+            long[] sortedKeys = new long[count];
+            long[] durations = new long[count];
+            int[] offsets = new int[count + 1];
+            int[] members = new int[total];
+            SectionIndex.Builder sections = new SectionIndex.Builder();
+            int pos = 0;
+            for (int g = 0; g < count; g++) {
+                int src = order[g];
+                sortedNames[g] = names.get(src);
+                sortedDetails[g] = details.get(src);
+                sortedKeys[g] = keys[src];
+                sections.add(decadeSections ? SectionIndex.decadeOf((int) keys[src])
+                        : SectionIndex.labelOf(sortKeys[src]));
+                offsets[g] = pos;
+                IntList list = lists.get(src);
+                long duration = 0;
+                for (int j = 0; j < list.size(); j++) {
+                    int song = list.get(j);
+                    members[pos++] = song;
+                    duration += songs.get(song).getDuration();
+                }
+                durations[g] = duration;
+            }
+            offsets[count] = pos;
+            return new GroupIndex(sortedNames, sortedDetails, sortedKeys, durations, offsets, members,
+                    sections.build());
+        }
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int group) {
+        return names[group];
+    }
+
+    /** Secondary label such as the album artist, or null. */
+    public String getDetail(int group) {
+        return details[group];
+    }
+
+    /** The id the group was built with; 0 for name-keyed groups. */
+    public long getKey(int group) {
+        return keys[group];
+    }
+
+    public int getCount(int group) {
+        return offsets[group + 1] - offsets[group];
+    }
+
+    public long getTotalDuration(int group) {
+        return durations[group];
+    }
+
+    /** Fast-scroll sections over all groups, by group position. */
+    public SectionIndex getSections() {
+        return sections;
+    }
+
+    /** First group with exactly this name, or -1. */
+    public int find(String name) {
+        Integer group = groupsByName.get(name);
+        return group != null ? group : -1;
+    }
+
+    /** Group built with this id, or -1. */
+    public int findKey(long key) {
+        return groupsByKey.get(key, -1);
+    }
+
+    /**
+     * Number of groups with exactly this name, such as albums sharing a
+     * title. Groups are sorted by collation key, so the scan stops at the
+     * first group whose key differs; names that only collate alike, like
+     * "The Wall" and "Wall", may sit between equal ones.
+     */
+    public int countNamed(String name) {
+        int first = find(name);
+        if (first < 0) return 0;
+        String key = CollationKeys.of(name);
+        int count = 1;
+        for (int g = first + 1; g < names.length; g++) {
+            if (names[g].equals(name)) {
+                count++;
+            } else if (!CollationKeys.of(names[g]).equals(key)) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /** {@code lowerQuery} must already be lowercase. */
+    public boolean nameContains(int group, String lowerQuery) {
+        return lowerNames[group].contains(lowerQuery);
+    }
+
+    /** Appends the group's songs in member order; O(group size). */
+    public void appendMembers(int group, List<Song> songs, ArrayList<Song> out) {
+        int end = offsets[group + 1];
+        out.ensureCapacity(out.size() + end - offsets[group]);
+        for (int i = offsets[group]; i < end; i++) {
+            out.add(songs.get(members[i]));
+        }
+    }
+}
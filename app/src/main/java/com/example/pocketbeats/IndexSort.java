@@ -0,0 +1,219 @@
+package com.example.pocketbeats;
+
+import java.util.Arrays;
+
+/**
+ * Stable merge sorts that produce a permutation of indices instead of moving
+ * the records themselves. Keys are compared directly, so no Comparator
+ * objects or boxed indices are involved.
+ *
+ * Large inputs are split into one slice per {@link LibraryWorkers} thread;
+ * slices are sorted concurrently, then merged pairwise, each round's merges
+ * also running in parallel.
+ */
+public class IndexSort {
+
+    private static final int INSERTION_THRESHOLD = 16;
+    // Below this, handing slices to other threads costs more than it saves
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    private IndexSort() {
+    }
+
+    /** Returns indices {@code 0..keys.length-1} ordered by {@code keys}. */
+    public static int[] sort(String[] keys) {
+        return sort(keys, identity(keys.length));
+    }
+
+    /**
+     * Returns {@code initial} reordered by {@code keys}; entries with equal
+     * keys keep their relative order from {@code initial}.
+     */
+    public static int[] sort(final String[] keys, int[] initial) {
+        return sort(initial, new Runs() {
+            public void insertionSort(int[] a, int lo, int hi) {
+                for (int i = lo + 1; i < hi; i++) {
+                    int v = a[i];
+                    String k = keys[v];
+                    int j = i - 1;
+                    while (j >= lo && keys[a[j]].compareTo(k) > 0) {
+                        a[j + 1] = a[j];
+                        j--;
+                    }
+                    a[j + 1] = v;
+                }
+            }
+
+            public void merge(int[] src, int[] dst, int lo, int mid, int hi) {
+                int i = lo;
+                int j = mid;
+                int k = lo;
+                while (i < mid && j < hi) {
+                    // <= keeps equal keys in their original order
+                    if (keys[src[i]].compareTo(keys[src[j]]) <= 0) {
+                        dst[k++] = src[i++];
+                    } else {
+                        dst[k++] = src[j++];
+                    }
+                }
+                while (i < mid) dst[k++] = src[i++];
+                while (j < hi) dst[k++] = src[j++];
+            }
+        });
+    }
+
+    /**
+     * Returns {@code initial} reordered by {@code keys}; entries with equal
+     * keys keep their relative order from {@code initial}.
+     */
+    public static int[] sort(final long[] keys, int[] initial) {
+        return sort(initial, new Runs() {
+            public void insertionSort(int[] a, int lo, int hi) {
+                for (int i = lo + 1; i < hi; i++) {
+                    int v = a[i];
+                    long k = keys[v];
+                    int j = i - 1;
+                    while (j >= lo && keys[a[j]] > k) {
+                        a[j + 1] = a[j];
+                        j--;
+                    }
+                    a[j + 1] = v;
+                }
+            }
+
+            public void merge(int[] src, int[] dst, int lo, int mid, int hi) {
+                int i = lo;
+                int j = mid;
+                int k = lo;
+                while (i < mid && j < hi) {
+                    if (keys[src[i]] <= keys[src[j]]) {
+                        dst[k++] = src[i++];
+                    } else {
+                        dst[k++] = src[j++];
+                    }
+                }
+                while (i < mid) dst[k++] = src[i++];
+                while (j < hi) dst[k++] = src[j++];
+            }
+        });
+    }
+
+    /** The key comparisons of one sort; slicing and merging are shared. */
+    private interface Runs {
+        /** Sorts {@code a[lo..hi)} in place, stably. */
+        void insertionSort(int[] a, int lo, int hi);
+
+        /** Merges sorted {@code src[lo..mid)} and {@code src[mid..hi)} into {@code dst}. */
+        void merge(int[] src, int[] dst, int lo, int mid, int hi);
+    }
+
+    private static int[] sort(int[] initial, final Runs runs) {
+        int n = initial.length;
+        final int slices = sliceCount(n);
+        if (slices == 1) return sortSlice(initial, runs);
+
+        final int[] src = initial.clone();
+        final int[] dst = new int[n];
+        final int size = (n + slices - 1) / slices;
+        Runnable[] tasks = new Runnable[slices];
+        for (int s = 0; s < slices; s++) {
+            final int lo = s * size;
+            final int hi = Math.min(lo + size, n);
+            tasks[s] = new Runnable() {
+                public void run() {
+                    int[] sorted = sortSlice(Arrays.copyOfRange(src, lo, hi), runs);
+                    System.arraycopy(sorted, 0, src, lo, sorted.length);
+                }
+            };
+        }
+        LibraryWorkers.runAll(tasks);
+        return mergeSlices(src, dst, size, runs);
+    }
+
+    private static int[] sortSlice(int[] initial, Runs runs) {
+        int n = initial.length;
+        int[] src = initial.clone();
+        int[] dst = new int[n];
+
+        for (int lo = 0; lo < n; lo += INSERTION_THRESHOLD) {
+            runs.insertionSort(src, lo, Math.min(lo + INSERTION_THRESHOLD, n));
+        }
+
+        for (int width = INSERTION_THRESHOLD; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                runs.merge(src, dst, lo, Math.min(lo + width, n), Math.min(lo + 2 * width, n));
+            }
+            int[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        return src;
+    }
+
+    private static int sliceCount(int n) {
+        if (n < PARALLEL_THRESHOLD) return 1;
+        return Math.min(LibraryWorkers.getWorkerCount(), n / INSERTION_THRESHOLD);
+    }
+
+    /** Merges sorted runs of {@code width} pairwise until one remains. */
+    private static int[] mergeSlices(int[] src, int[] dst, int width, final Runs runs) {
+        final int n = src.length;
+        for (; width < n; width *= 2) {
+            final int[] from = src;
+            final int[] to = dst;
+            final int w = width;
+            int pairs = (n + 2 * width - 1) / (2 * width);
+            Runnable[] tasks = new Runnable[pairs];
+            for (int p = 0; p < pairs; p++) {
+                final int lo = p * 2 * w;
+                tasks[p] = new Runnable() {
+                    public void run() {
+                        int mid = Math.min(lo + w, n);
+                        runs.merge(from, to, lo, mid, Math.min(lo + 2 * w, n));
+                    }
+                };
+            }
+            LibraryWorkers.runAll(tasks);
+            src = to;
+            dst = from;
+        }
+        return src;
+    }
+
+    /**
+     * Dense ordinals for string keys: equal keys share an ordinal and
+     * ordinals follow key order.
+     */
+    public static int[] ordinals(String[] keys) {
+        int[] order = sort(keys);
+        int[] result = new int[keys.length];
+        int ordinal = -1;
+        String previous = null;
+        for (int i = 0; i < order.length; i++) {
+            String key = keys[order[i]];
+            if (previous == null || !previous.equals(key)) {
+                ordinal++;
+                previous = key;
+            }
+            result[order[i]] = ordinal;
+        }
+        return result;
+    }
+
+    /** Inverse of a permutation: {@code rank[order[i]] == i}. */
+    public static int[] invert(int[] order) {
+        int[] rank = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            rank[order[i]] = i;
+        }
+        return rank;
+    }
+
+    static int[] identity(int n) {
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = i;
+        }
+        return result;
+    }
+}
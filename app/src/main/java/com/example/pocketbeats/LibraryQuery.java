@@ -0,0 +1,397 @@
+package com.example.pocketbeats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A search string compiled into a small plan of index lookups.
+ *
+ * Bare words match anywhere in the title, artist or album, so "beat" finds
+ * "Heartbeat". A "quoted phrase" matches only with its words next to each
+ * other and in order. {@code artist:}, {@code album:} and {@code title:}
+ * restrict a word or a phrase to one field. {@code dur>5m},
+ * {@code dur<=3:30} and {@code duration>=90s} compare track length. All
+ * terms must match.
+ *
+ * The plan runs the most selective term first. Later terms either intersect
+ * their posting list or, when the candidate set is already small, check the
+ * remaining candidates directly.
+ */
+public class LibraryQuery {
+
+    public static final LibraryQuery EMPTY = new LibraryQuery(new Term[0]);
+
+    // Below this ratio of candidates to postings, checking beats intersecting
+    private static final int FILTER_RATIO = 8;
+
+    private final Term[] terms;
+
+    private LibraryQuery(Term[] terms) {
+        this.terms = terms;
+    }
+
+    public static LibraryQuery parse(String query) {
+        if (query == null) return EMPTY;
+        ArrayList<Term> terms = new ArrayList<Term>();
+        ArrayList<String> raw = splitTokens(query);
+        ArrayList<String> words = new ArrayList<String>();
+        for (int i = 0; i < raw.size(); i++) {
+            String token = raw.get(i);
+            String lower = token.toLowerCase();
+
+            DurationTerm duration = DurationTerm.parse(lower);
+            if (duration != null) {
+                terms.add(duration);
+                continue;
+            }
+
+            int field = -1;
+            String value = token;
+            int colon = lower.indexOf(':');
+            if (colon > 0) {
+                String name = lower.substring(0, colon);
+                if (name.equals("artist")) {
+                    field = QueryIndex.FIELD_ARTIST;
+                } else if (name.equals("album")) {
+                    field = QueryIndex.FIELD_ALBUM;
+                } else if (name.equals("title")) {
+                    field = QueryIndex.FIELD_TITLE;
+                }
+                if (field >= 0) {
+                    value = token.substring(colon + 1);
+                }
+            }
+
+            words.clear();
+            QueryIndex.tokenize(value, words);
+            if (value.indexOf('"') >= 0 && words.size() > 1) {
+                terms.add(new PhraseTerm(field, words.toArray(new String[words.size()])));
+            } else {
+                for (int w = 0; w < words.size(); w++) {
+                    terms.add(new WordTerm(field, words.get(w)));
+                }
+            }
+        }
+        return terms.isEmpty() ? EMPTY : new LibraryQuery(terms.toArray(new Term[terms.size()]));
+    }
+
+    // Whitespace-separated tokens; double quotes keep spaces inside a token and
+    // stay in it, marking it as a phrase
+    private static ArrayList<String> splitTokens(String query) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                current.append(c);
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (current.length() > 0) {
+                    tokens.add(current.toString());
+                    current.setLength(0);
+                }
+            } else {
+                current.append(c);
+            }
+        }
+        if (current.length() > 0) {
+            tokens.add(current.toString());
+        }
+        return tokens;
+    }
+
+    public boolean isEmpty() {
+        return terms.length == 0;
+    }
+
+    /** Ascending snapshot indices of all matching songs. */
+    public int[] execute(QueryIndex index) {
+        if (terms.length == 0) {
+            int[] all = new int[index.getSongCount()];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+
+        // Order terms by estimated result size; there are only ever a handful
+        int count = terms.length;
+        Term[] order = terms.clone();
+        int[] estimates = new int[count];
+        for (int i = 0; i < count; i++) {
+            estimates[i] = order[i].estimate(index);
+        }
+        for (int i = 1; i < count; i++) {
+            Term t = order[i];
+            int e = estimates[i];
+            int j = i - 1;
+            while (j >= 0 && estimates[j] > e) {
+                order[j + 1] = order[j];
+                estimates[j + 1] = estimates[j];
+                j--;
+            }
+            order[j + 1] = t;
+            estimates[j + 1] = e;
+        }
+
+        int[] result = order[0].lookup(index);
+        for (int i = 1; i < count && result.length > 0; i++) {
+            if ((long) result.length * FILTER_RATIO < estimates[i]) {
+                int kept = 0;
+                for (int j = 0; j < result.length; j++) {
+                    if (order[i].matches(index.getSong(result[j]))) {
+                        result[kept++] = result[j];
+                    }
+                }
+                result = Arrays.copyOf(result, kept);
+            } else {
+                result = intersect(result, order[i].lookup(index));
+            }
+        }
+        return result;
+    }
+
+    /** Checks one song against every term, for lists that are already small. */
+    public boolean matches(Song song) {
+        for (int i = 0; i < terms.length; i++) {
+            if (!terms[i].matches(song)) return false;
+        }
+        return true;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int[] out = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length || j < b.length) {
+            int v;
+            if (j >= b.length || (i < a.length && a[i] < b[j])) {
+                v = a[i++];
+            } else if (i >= a.length || b[j] < a[i]) {
+                v = b[j++];
+            } else {
+                v = a[i++];
+                j++;
+            }
+            out[n++] = v;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private abstract static class Term {
+        abstract int estimate(QueryIndex index);
+        abstract int[] lookup(QueryIndex index);
+        abstract boolean matches(Song song);
+    }
+
+    /**
+     * Substring match on one field, or on any field when {@code field < 0}.
+     * The text is a single word, so it can only occur inside one word of the
+     * value, which is what lets the word dictionary answer it.
+     */
+    private static class WordTerm extends Term {
+        private final int field;
+        private final String text;
+
+        WordTerm(int field, String text) {
+            this.field = field;
+            this.text = text;
+        }
+
+        int estimate(QueryIndex index) {
+            if (field >= 0) {
+                return index.estimateWordPrefix(field, text);
+            }
+            int total = 0;
+            for (int f = 0; f < QueryIndex.FIELD_COUNT; f++) {
+                total += index.estimateWordPrefix(f, text);
+            }
+            return total;
+        }
+
+        int[] lookup(QueryIndex index) {
+            if (field >= 0) {
+                return index.lookupWordsContaining(field, text);
+            }
+            int[] result = index.lookupWordsContaining(0, text);
+            for (int f = 1; f < QueryIndex.FIELD_COUNT; f++) {
+                result = union(result, index.lookupWordsContaining(f, text));
+            }
+            return result;
+        }
+
+        boolean matches(Song song) {
+            if (field >= 0) {
+                return QueryIndex.fieldValue(song, field).toLowerCase().contains(text);
+            }
+            for (int f = 0; f < QueryIndex.FIELD_COUNT; f++) {
+                if (QueryIndex.fieldValue(song, f).toLowerCase().contains(text)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Words that must appear next to each other and in order within one
+     * field, ignoring punctuation between them. Each word narrows the
+     * candidates through the index; the survivors are checked for adjacency.
+     */
+    private static class PhraseTerm extends Term {
+        private final int field;
+        private final WordTerm[] words;
+        // The words joined by single spaces, as normalize() writes a value
+        private final String phrase;
+
+        PhraseTerm(int field, String[] words) {
+            this.field = field;
+            this.words = new WordTerm[words.length];
+            StringBuilder joined = new StringBuilder();
+            for (int i = 0; i < words.length; i++) {
+                this.words[i] = new WordTerm(field, words[i]);
+                if (i > 0) joined.append(' ');
+                joined.append(words[i]);
+            }
+            phrase = joined.toString();
+        }
+
+        int estimate(QueryIndex index) {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < words.length; i++) {
+                min = Math.min(min, words[i].estimate(index));
+            }
+            return min;
+        }
+
+        int[] lookup(QueryIndex index) {
+            int[] result = words[0].lookup(index);
+            for (int i = 1; i < words.length && result.length > 0; i++) {
+                result = intersect(result, words[i].lookup(index));
+            }
+            int kept = 0;
+            for (int j = 0; j < result.length; j++) {
+                if (matches(index.getSong(result[j]))) {
+                    result[kept++] = result[j];
+                }
+            }
+            return Arrays.copyOf(result, kept);
+        }
+
+        boolean matches(Song song) {
+            if (field >= 0) {
+                return normalize(QueryIndex.fieldValue(song, field)).contains(phrase);
+            }
+            for (int f = 0; f < QueryIndex.FIELD_COUNT; f++) {
+                if (normalize(QueryIndex.fieldValue(song, f)).contains(phrase)) return true;
+            }
+            return false;
+        }
+
+        private static String normalize(String value) {
+            ArrayList<String> tokens = new ArrayList<String>();
+            QueryIndex.tokenize(value, tokens);
+            StringBuilder joined = new StringBuilder(value.length());
+            for (int i = 0; i < tokens.size(); i++) {
+                if (i > 0) joined.append(' ');
+                joined.append(tokens.get(i));
+            }
+            return joined.toString();
+        }
+    }
+
+    /** Inclusive duration range in milliseconds. */
+    private static class DurationTerm extends Term {
+        private final long minMs;
+        private final long maxMs;
+
+        DurationTerm(long minMs, long maxMs) {
+            this.minMs = minMs;
+            this.maxMs = maxMs;
+        }
+
+        // Accepts dur>5m, dur<=3:30, duration>=90s, dur<200 (seconds)
+        static DurationTerm parse(String token) {
+            String rest;
+            if (token.startsWith("duration")) {
+                rest = token.substring(8);
+            } else if (token.startsWith("dur")) {
+                rest = token.substring(3);
+            } else {
+                return null;
+            }
+            if (rest.length() < 2) return null;
+            char op = rest.charAt(0);
+            if (op != '<' && op != '>') return null;
+            boolean inclusive = rest.charAt(1) == '=';
+            long value = parseDuration(rest.substring(inclusive ? 2 : 1));
+            if (value < 0) return null;
+            if (op == '>') {
+                return new DurationTerm(inclusive ? value : value + 1, Long.MAX_VALUE);
+            }
+            return new DurationTerm(0, inclusive ? value : value - 1);
+        }
+
+        // "5m", "5m30s", "90s", "4:30" or plain seconds; -1 when malformed
+        private static long parseDuration(String text) {
+            if (text.length() == 0) return -1;
+            int colon = text.indexOf(':');
+            try {
+                if (colon >= 0) {
+                    long minutes = Long.parseLong(text.substring(0, colon));
+                    long seconds = Long.parseLong(text.substring(colon + 1));
+                    return (minutes * 60 + seconds) * 1000;
+                }
+                long total = 0;
+                int start = 0;
+                for (int i = 0; i < text.length(); i++) {
+                    char c = text.charAt(i);
+                    if (c == 'h' || c == 'm' || c == 's') {
+                        if (i == start) return -1;
+                        long n = Long.parseLong(text.substring(start, i));
+                        total += c == 'h' ? n * 3600 : c == 'm' ? n * 60 : n;
+                        start = i + 1;
+                    }
+                }
+                if (start < text.length()) {
+                    total += Long.parseLong(text.substring(start));
+                }
+                return total * 1000;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        int estimate(QueryIndex index) {
+            return index.estimateDuration(minMs, maxMs);
+        }
+
+        int[] lookup(QueryIndex index) {
+            return index.lookupDuration(minMs, maxMs);
+        }
+
+        boolean matches(Song song) {
+            long d = song.getDuration();
+            return d >= minMs && d <= maxMs;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.example.pocketbeats;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Point-in-time copy of the song library together with the lookup structures
+ * derived from it. Built on the loader thread, then handed to the UI thread,
+ * which only ever reads it.
+ *
+ * Songs keep their load order; every sort mode is a cached permutation, so
+ * switching modes is a walk over an int array rather than a sort.
+ */
+public class LibrarySnapshot {
+
+    public static final int SORT_TITLE = 0;
+    public static final int SORT_ARTIST = 1;
+    public static final int SORT_ALBUM = 2;
+    // Newest first; modes before these sort by collation key
+    public static final int SORT_ADDED = 3;
+    public static final int SORT_MODIFIED = 4;
+    public static final int SORT_MODE_COUNT = 5;
+
+    // Album artist, year, album, disc, track: how albums are meant to play
+    public static final int ORDER_ALBUM_TRACKS = 5;
+    private static final int ORDER_COUNT = 6;
+
+    // Bit layout of the packed album-track key (63 bits, always positive)
+    private static final int TRACK_BITS = 8;
+    private static final int DISC_BITS = 6;
+    private static final int ALBUM_BITS = 20;
+    private static final int YEAR_BITS = 11;
+    private static final int ARTIST_BITS = 18;
+
+    private static final String TAG = "LibrarySnapshot";
+
+    private static final int GROUP_ARTISTS = 0;
+    private static final int GROUP_ALBUMS = 1;
+    private static final int GROUP_GENRES = 2;
+    private static final int GROUP_YEARS = 3;
+    private static final int GROUP_COUNT = 4;
+    // Smaller libraries are grouped in one pass
+    private static final int GROUP_CHUNK_MIN = 4096;
+
+    public static final LibrarySnapshot EMPTY = build(new ArrayList<Song>());
+
+    private final ArrayList<Song> songs;
+    private final SuggestionIndex suggestions;
+    private final QueryIndex queryIndex;
+    private final GroupIndex artistGroups;
+    private final GroupIndex albumGroups;
+    private final GroupIndex genreGroups;
+    private final GroupIndex yearGroups;
+    private final FolderIndex folders;
+
+    // Per order: order[i] is the song at position i, rank is its inverse
+    private final int[][] orders;
+    private final int[][] ranks;
+    // Fast-scroll sections of each sort mode, by position in its order
+    private final SectionIndex[] sections;
+
+    private LibrarySnapshot(ArrayList<Song> songs, SuggestionIndex suggestions,
+                            QueryIndex queryIndex, GroupIndex artistGroups,
+                            GroupIndex albumGroups, GroupIndex genreGroups,
+                            GroupIndex yearGroups, FolderIndex folders,
+                            int[][] orders, int[][] ranks, SectionIndex[] sections) {
+        this.songs = songs;
+        this.suggestions = suggestions;
+        this.queryIndex = queryIndex;
+        this.artistGroups = artistGroups;
+        this.albumGroups = albumGroups;
+        this.genreGroups = genreGroups;
+        this.yearGroups = yearGroups;
+        this.folders = folders;
+        this.orders = orders;
+        this.ranks = ranks;
+        this.sections = sections;
+    }
+
+    /**
+     * Derives every index from {@code source}. Independent pieces run as one
+     * batch on {@link LibraryWorkers}: the collation orders, the album-track
+     * keys and the search, suggestion and folder indexes first, then the
+     * orders that break ties by title, then grouping in per-chunk passes.
+     */
+    public static LibrarySnapshot build(List<Song> source) {
+        long startTime = SystemClock.uptimeMillis();
+        final ArrayList<Song> songs = new ArrayList<Song>(source);
+        final int n = songs.size();
+
+        final int[][] orders = new int[ORDER_COUNT][];
+        final int[][] ranks = new int[ORDER_COUNT][];
+        final SectionIndex[] sections = new SectionIndex[SORT_MODE_COUNT];
+        final long[][] albumKeys = new long[1][];
+        final Object[] indexes = new Object[3];
+        Runnable[] first = new Runnable[SORT_ADDED + 4];
+        for (int m = 0; m < SORT_ADDED; m++) {
+            final int mode = m;
+            first[m] = new Runnable() {
+                public void run() {
+                    buildCollatedOrder(songs, mode, orders, ranks, sections);
+                }
+            };
+        }
+        first[SORT_ADDED] = new Runnable() {
+            public void run() {
+                albumKeys[0] = albumTrackKeys(songs);
+            }
+        };
+        first[SORT_ADDED + 1] = new Runnable() {
+            public void run() {
+                indexes[0] = SuggestionIndex.build(songs);
+            }
+        };
+        first[SORT_ADDED + 2] = new Runnable() {
+            public void run() {
+                indexes[1] = QueryIndex.build(songs);
+            }
+        };
+        first[SORT_ADDED + 3] = new Runnable() {
+            public void run() {
+                indexes[2] = FolderIndex.build(songs);
+            }
+        };
+        LibraryWorkers.runAll(first);
+
+        // Title order breaks ties between songs with the same date, and
+        // between tracks without numbers
+        Runnable[] second = new Runnable[SORT_MODE_COUNT - SORT_ADDED + 1];
+        for (int m = SORT_ADDED; m < SORT_MODE_COUNT; m++) {
+            final int mode = m;
+            second[m - SORT_ADDED] = new Runnable() {
+                public void run() {
+                    orders[mode] = IndexSort.sort(dateKeys(songs, mode), orders[SORT_TITLE]);
+                    ranks[mode] = IndexSort.invert(orders[mode]);
+                    sections[mode] = SectionIndex.NONE;
+                }
+            };
+        }
+        second[second.length - 1] = new Runnable() {
+            public void run() {
+                orders[ORDER_ALBUM_TRACKS] = IndexSort.sort(albumKeys[0], orders[SORT_TITLE]);
+                ranks[ORDER_ALBUM_TRACKS] = IndexSort.invert(orders[ORDER_ALBUM_TRACKS]);
+            }
+        };
+        LibraryWorkers.runAll(second);
+
+        GroupIndex[] groups = buildGroups(songs, orders[ORDER_ALBUM_TRACKS]);
+
+        Log.i(TAG, "Built snapshot of " + n + " songs in " + (SystemClock.uptimeMillis() - startTime)
+                + " ms on " + LibraryWorkers.getWorkerCount() + " workers");
+        return new LibrarySnapshot(songs, (SuggestionIndex) indexes[0], (QueryIndex) indexes[1],
+                groups[GROUP_ARTISTS], groups[GROUP_ALBUMS], groups[GROUP_GENRES],
+                groups[GROUP_YEARS], (FolderIndex) indexes[2], orders, ranks, sections);
+    }
+
+    private static void buildCollatedOrder(ArrayList<Song> songs, int mode, int[][] orders,
+                                           int[][] ranks, SectionIndex[] sections) {
+        int n = songs.size();
+        String[] keys = new String[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = CollationKeys.of(sortField(songs.get(i), mode));
+        }
+        int[] order = IndexSort.sort(keys);
+        orders[mode] = order;
+        ranks[mode] = IndexSort.invert(order);
+        SectionIndex.Builder builder = new SectionIndex.Builder();
+        for (int i = 0; i < n; i++) {
+            builder.add(SectionIndex.labelOf(keys[order[i]]));
+        }
+        sections[mode] = builder.build();
+    }
+
+    /**
+     * Each worker groups one contiguous chunk of album order; the chunk
+     * builders are then merged in order, so members still come out in play
+     * order, and the four final indexes are sorted concurrently.
+     */
+    private static GroupIndex[] buildGroups(final ArrayList<Song> songs, final int[] albumOrder) {
+        int n = albumOrder.length;
+        int chunks = n < GROUP_CHUNK_MIN ? 1 : LibraryWorkers.getWorkerCount();
+        final GroupIndex.Builder[][] builders = new GroupIndex.Builder[chunks][];
+        Runnable[] count = new Runnable[chunks];
+        int size = (n + chunks - 1) / Math.max(chunks, 1);
+        for (int c = 0; c < chunks; c++) {
+            final int chunk = c;
+            final int lo = Math.min(c * size, n);
+            final int hi = Math.min(lo + size, n);
+            count[c] = new Runnable() {
+                public void run() {
+                    builders[chunk] = groupRange(songs, albumOrder, lo, hi);
+                }
+            };
+        }
+        LibraryWorkers.runAll(count);
+
+        final GroupIndex.Builder[] merged = builders[0];
+        for (int c = 1; c < chunks; c++) {
+            for (int g = 0; g < GROUP_COUNT; g++) {
+                merged[g].addAll(builders[c][g]);
+            }
+        }
+        final GroupIndex[] result = new GroupIndex[GROUP_COUNT];
+        Runnable[] finish = new Runnable[GROUP_COUNT];
+        for (int g = 0; g < GROUP_COUNT; g++) {
+            final int group = g;
+            finish[g] = new Runnable() {
+                public void run() {
+                    result[group] = merged[group].build(songs);
+                }
+            };
+        }
+        LibraryWorkers.runAll(finish);
+        return result;
+    }
+
+    private static GroupIndex.Builder[] groupRange(ArrayList<Song> songs, int[] albumOrder,
+                                                   int lo, int hi) {
+        GroupIndex.Builder[] builders = new GroupIndex.Builder[GROUP_COUNT];
+        for (int g = 0; g < GROUP_COUNT; g++) {
+            builders[g] = new GroupIndex.Builder();
+        }
+        // Years all start with a digit, so letter sections would collapse to "#"
+        builders[GROUP_YEARS].setDecadeSections(true);
+        for (int i = lo; i < hi; i++) {
+            int index = albumOrder[i];
+            Song song = songs.get(index);
+            builders[GROUP_ARTISTS].add(song.getArtist(), index);
+            builders[GROUP_ALBUMS].add(song.getAlbumKey(), song.getAlbum(), song.getAlbumArtist(), index);
+            // Songs without a genre or year are left out of those tabs
+            if (song.getGenre() != null) {
+                builders[GROUP_GENRES].add(song.getGenre(), index);
+            }
+            if (song.getYear() > 0) {
+                builders[GROUP_YEARS].add(song.getYear(), String.valueOf(song.getYear()), null, index);
+            }
+        }
+        return builders;
+    }
+
+    private static String sortField(Song song, int mode) {
+        switch (mode) {
+            case SORT_ARTIST:
+                return song.getArtist();
+            case SORT_ALBUM:
+                return song.getAlbum();
+            default:
+                return song.getTitle();
+        }
+    }
+
+    // Ascending keys that put the newest date first
+    private static long[] dateKeys(ArrayList<Song> songs, int mode) {
+        long[] keys = new long[songs.size()];
+        for (int i = 0; i < keys.length; i++) {
+            Song song = songs.get(i);
+            long date = mode == SORT_ADDED ? song.getDateAdded() : song.getDateModified();
+            keys[i] = Long.MAX_VALUE - date;
+        }
+        return keys;
+    }
+
+    /**
+     * One primitive key per song so album ordering is a single long compare:
+     * album artist ordinal | year | album ordinal | disc | track, high to low.
+     * Ordinals come from collation order; oversized fields saturate.
+     */
+    private static long[] albumTrackKeys(ArrayList<Song> songs) {
+        int n = songs.size();
+        String[] keys = new String[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = CollationKeys.of(songs.get(i).getAlbumArtist());
+        }
+        int[] artistOrdinals = IndexSort.ordinals(keys);
+        for (int i = 0; i < n; i++) {
+            // Named by title, told apart by key: two "Greatest Hits" never interleave
+            Song song = songs.get(i);
+            keys[i] = CollationKeys.of(song.getAlbum()) + '\u0000' + song.getAlbumKey();
+        }
+        int[] albumOrdinals = IndexSort.ordinals(keys);
+
+        long[] packed = new long[n];
+        for (int i = 0; i < n; i++) {
+            Song song = songs.get(i);
+            long key = clamp(artistOrdinals[i], ARTIST_BITS);
+            key = (key << YEAR_BITS) | clamp(song.getYear(), YEAR_BITS);
+            key = (key << ALBUM_BITS) | clamp(albumOrdinals[i], ALBUM_BITS);
+            key = (key << DISC_BITS) | clamp(song.getDisc(), DISC_BITS);
+            key = (key << TRACK_BITS) | clamp(song.getTrack(), TRACK_BITS);
+            packed[i] = key;
+        }
+        return packed;
+    }
+
+    private static long clamp(int value, int bits) {
+        long max = (1L << bits) - 1;
+        return value < 0 ? 0 : Math.min(value, max);
+    }
+
+    public ArrayList<Song> getSongs() { return songs; }
+    public SuggestionIndex getSuggestions() { return suggestions; }
+    public QueryIndex getQueryIndex() { return queryIndex; }
+    public GroupIndex getArtistGroups() { return artistGroups; }
+    public GroupIndex getAlbumGroups() { return albumGroups; }
+    public GroupIndex getGenreGroups() { return genreGroups; }
+    public GroupIndex getYearGroups() { return yearGroups; }
+    public FolderIndex getFolders() { return folders; }
+
+    /** A sort mode or {@link #ORDER_ALBUM_TRACKS}. */
+    public int[] getOrder(int orderId) {
+        return orders[orderId];
+    }
+
+    /** Sections of the full list in a sort mode; none for other orders. */
+    public SectionIndex getSections(int orderId) {
+        return orderId < SORT_MODE_COUNT ? sections[orderId] : SectionIndex.NONE;
+    }
+
+    /** Appends every song in the given order. */
+    public void appendSorted(int orderId, ArrayList<Song> out) {
+        int[] order = orders[orderId];
+        out.ensureCapacity(out.size() + order.length);
+        for (int i = 0; i < order.length; i++) {
+            out.add(songs.get(order[i]));
+        }
+    }
+
+    /**
+     * Appends the songs at {@code indices} (snapshot positions, any order) in
+     * the given order. Small subsets sort their ranks as plain ints; large
+     * ones are picked out of the cached permutation in one pass. If
+     * {@code positionsOut} is given, it receives each appended song's position
+     * in the full order, for {@link SectionIndex#subset}.
+     */
+    public void appendSorted(int orderId, int[] indices, ArrayList<Song> out,
+                             IntList positionsOut) {
+        int[] order = orders[orderId];
+        out.ensureCapacity(out.size() + indices.length);
+        if (indices.length > order.length / 8) {
+            boolean[] selected = new boolean[songs.size()];
+            for (int i = 0; i < indices.length; i++) {
+                selected[indices[i]] = true;
+            }
+            for (int i = 0; i < order.length; i++) {
+                if (selected[order[i]]) {
+                    out.add(songs.get(order[i]));
+                    if (positionsOut != null) positionsOut.add(i);
+                }
+            }
+        } else {
+            int[] rank = ranks[orderId];
+            int[] positions = new int[indices.length];
+            for (int i = 0; i < indices.length; i++) {
+                positions[i] = rank[indices[i]];
+            }
+            Arrays.sort(positions);
+            for (int i = 0; i < positions.length; i++) {
+                out.add(songs.get(order[positions[i]]));
+                if (positionsOut != null) positionsOut.add(positions[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.pocketbeats;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small fixed pool for deriving library indexes, sized to the core count
+ * and capped at four. Single-core devices get no pool: every batch simply
+ * runs on the calling thread.
+ *
+ * The caller of {@link #runAll} works through the batch alongside the
+ * pool and only waits for tasks another thread has already started, so
+ * batches may be nested inside pool tasks without deadlocking.
+ *
+ * {@link #setWorkerCount} may run while a batch is in flight: the batch
+ * keeps the pool it started with, which shuts down once its last batch ends.
+ */
+public class LibraryWorkers {
+
+    private static final int MAX_WORKERS = 4;
+
+    private static int workerCount = Math.min(MAX_WORKERS,
+            Math.max(1, Runtime.getRuntime().availableProcessors()));
+    // Guarded by the class
+    private static Pool pool;
+
+    /** An executor plus the batches still using it; fields guarded by the class. */
+    private static final class Pool {
+        final ExecutorService executor;
+        final int helpers;
+        int batches;
+        boolean retired;
+
+        Pool(ExecutorService executor, int helpers) {
+            this.executor = executor;
+            this.helpers = helpers;
+        }
+    }
+
+    private LibraryWorkers() {
+    }
+
+    /** Threads that work on a batch, the caller included. */
+    public static synchronized int getWorkerCount() {
+        return workerCount;
+    }
+
+    /** Pins the worker count, e.g. to compare timings; 1 disables the pool. */
+    public static synchronized void setWorkerCount(int count) {
+        count = Math.max(1, Math.min(MAX_WORKERS, count));
+        if (count == workerCount) return;
+        if (pool != null) {
+            // Batches already running finish on the old pool
+            pool.retired = true;
+            if (pool.batches == 0) {
+                pool.executor.shutdown();
+            }
+            pool = null;
+        }
+        workerCount = count;
+    }
+
+    /** The current pool, counted as in use until {@link #release}; null without one. */
+    private static synchronized Pool acquire() {
+        if (pool == null && workerCount > 1) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(workerCount - 1,
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r,
+                                    "LibraryWorker-" + threadNumber.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pool = new Pool(executor, workerCount - 1);
+        }
+        if (pool != null) {
+            pool.batches++;
+        }
+        return pool;
+    }
+
+    private static synchronized void release(Pool used) {
+        if (--used.batches == 0 && used.retired) {
+            used.executor.shutdown();
+        }
+    }
+
+    /** Runs every task and returns once all have finished; rethrows the first failure. */
+    public static void runAll(final Runnable... tasks) {
+        Pool used = tasks.length < 2 ? null : acquire();
+        if (used == null) {
+            for (int i = 0; i < tasks.length; i++) {
+                tasks[i].run();
+            }
+            return;
+        }
+        try {
+            runAll(used, tasks);
+        } finally {
+            release(used);
+        }
+    }
+
+    private static void runAll(Pool used, final Runnable[] tasks) {
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(tasks.length);
+        final Throwable[] failure = new Throwable[1];
+        Runnable drain = new Runnable() {
+            public void run() {
+                int index;
+                while ((index = next.getAndIncrement()) < tasks.length) {
+                    try {
+                        tasks[index].run();
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            if (failure[0] == null) failure[0] = t;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+        int helpers = Math.min(used.helpers, tasks.length - 1);
+        for (int i = 0; i < helpers; i++) {
+            used.executor.execute(drain);
+        }
+        drain.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (failure) {
+            if (failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+            if (failure[0] instanceof Error) throw (Error) failure[0];
+            if (failure[0] != null) throw new RuntimeException(failure[0]);
+        }
+    }
+}
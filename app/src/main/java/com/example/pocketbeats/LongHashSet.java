@@ -0,0 +1,121 @@
+package com.example.pocketbeats;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing set of primitive long keys, eight bytes per slot with no
+ * boxing or entry objects. Zero is reserved to mark an empty slot and can
+ * not be stored. Not thread-safe.
+ */
+public class LongHashSet {
+
+    private long[] keys;
+    private int size;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+    }
+
+    /** A copy of {@code other}, e.g. to publish a changed set without locking readers. */
+    public LongHashSet(LongHashSet other) {
+        keys = other.keys.clone();
+        size = other.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(long key) {
+        if (key == 0) return false;
+        int mask = keys.length - 1;
+        int slot = LongIntMap.hash(key) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /** Returns false if {@code key} was already present or is 0. */
+    public boolean add(long key) {
+        if (key == 0) return false;
+        int mask = keys.length - 1;
+        int slot = LongIntMap.hash(key) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) return false;
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+        return true;
+    }
+
+    /** Returns false if {@code key} was not present or is 0. */
+    public boolean remove(long key) {
+        if (key == 0) return false;
+        int mask = keys.length - 1;
+        int slot = LongIntMap.hash(key) & mask;
+        while (keys[slot] != key) {
+            if (keys[slot] == 0) return false;
+            slot = (slot + 1) & mask;
+        }
+        // Shift later keys of the probe run back so lookups never stop early
+        int hole = slot;
+        slot = (slot + 1) & mask;
+        while (keys[slot] != 0) {
+            int home = LongIntMap.hash(keys[slot]) & mask;
+            // Movable unless its home lies cyclically in (hole, slot]
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                keys[hole] = keys[slot];
+                hole = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[hole] = 0;
+        size--;
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        size = 0;
+    }
+
+    /** Every key, in no particular order. */
+    public long[] toArray() {
+        long[] out = new long[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                out[n++] = keys[i];
+            }
+        }
+        return out;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        keys = new long[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = LongIntMap.hash(oldKeys[i]) & mask;
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+            }
+        }
+    }
+}
@@ -9,8 +9,10 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.media.AudioManager;
 import android.media.MediaMetadataRetriever;
 import android.net.Uri;
@@ -23,8 +25,11 @@ import android.view.ContextMenu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
+import android.widget.AutoCompleteTextView;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.FrameLayout;
+import android.widget.HorizontalScrollView;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
@@ -33,24 +38,32 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
 
 public class MainActivity extends Activity {
 
     private static final String TAG = "MainActivity";
 
-    private static final int SORT_TITLE = 0;
-    private static final int SORT_ARTIST = 1;
-    private static final int SORT_ALBUM = 2;
+    private static final int SORT_TITLE = LibrarySnapshot.SORT_TITLE;
+    private static final int SORT_ARTIST = LibrarySnapshot.SORT_ARTIST;
+    private static final int SORT_ALBUM = LibrarySnapshot.SORT_ALBUM;
+    private static final int SORT_ADDED = LibrarySnapshot.SORT_ADDED;
+    private static final int SORT_MODIFIED = LibrarySnapshot.SORT_MODIFIED;
+
+    private static final String MUSIC_SELECTION = "(" + MediaStore.Audio.Media.IS_MUSIC + " != 0 OR "
+            + MediaStore.Audio.Media.MIME_TYPE + " LIKE 'audio/%')";
+    // MediaStore notifies once per scanned file; wait for a scan to settle
+    private static final long MEDIA_REFRESH_DELAY_MS = 3000;
 
     private static final int TAB_SONGS = 0;
     private static final int TAB_ARTISTS = 1;
     private static final int TAB_ALBUMS = 2;
-    private static final int TAB_PLAYLISTS = 3;
+    private static final int TAB_GENRES = 3;
+    private static final int TAB_YEARS = 4;
+    private static final int TAB_FOLDERS = 5;
+    private static final int TAB_PLAYLISTS = 6;
+    private static final int TAB_COUNT = 7;
 
     // Context menu IDs
     private static final int CONTEXT_ADD_TO_PLAYLIST = 1;
@@ -60,6 +73,8 @@ public class MainActivity extends Activity {
     private static final int CONTEXT_REMOVE_FROM_PLAYLIST = 5;
 
     private ArrayList<Song> allSongs = new ArrayList<Song>();
+    // Normalized paths of songs found by the filesystem scan rather than MediaStore
+    private final java.util.HashSet<String> filesystemPaths = new java.util.HashSet<String>();
     private ArrayList<Song> filteredSongs = new ArrayList<Song>();
     private SongAdapter songAdapter;
     private MusicService musicService;
@@ -70,18 +85,31 @@ public class MainActivity extends Activity {
     private int currentTab = TAB_SONGS;
     private boolean inSubView = false;
     private String subViewKey = "";
+    // Group sub-views are identified by the group key (album key or year); names are not unique
+    private long subViewGroupKey = 0;
+    // Folders are tracked by path so they survive snapshot swaps; null is the top
+    private String folderPath = null;
+    private String subViewFolderPath = null;
+    // Set when the sub-view shows an unfiltered snapshot range the service can share
+    private List<Song> subViewRange = null;
 
     // Tab views
     private TextView tabSongs;
     private TextView tabArtists;
     private TextView tabAlbums;
+    private TextView tabGenres;
+    private TextView tabYears;
+    private TextView tabFolders;
     private TextView tabPlaylists;
+    private HorizontalScrollView tabScroller;
     private View tabIndicator;
-    private View tabIndicatorSpacer;
 
     // Category data
     private ArrayList<String> categoryNames = new ArrayList<String>();
     private ArrayList<Integer> categoryCounts = new ArrayList<Integer>();
+    private ArrayList<Long> categoryDurations = new ArrayList<Long>();
+    private ArrayList<String> categoryDetails = new ArrayList<String>();
+    private IntList categoryGroups = new IntList();
     private CategoryAdapter categoryAdapter;
 
     // Sub-view song list
@@ -90,6 +118,9 @@ public class MainActivity extends Activity {
     // Song path lookup for playlists
     private HashMap<String, Song> songsByPath = new HashMap<String, Song>();
 
+    // Read-only library indexes, replaced wholesale by the loader thread
+    private LibrarySnapshot library = LibrarySnapshot.EMPTY;
+
     // Playlist DB
     private PlaylistDbHelper playlistDb;
 
@@ -110,6 +141,9 @@ public class MainActivity extends Activity {
     // Mini-player views
     private LinearLayout miniPlayerBar;
     private ImageView miniAlbumArt;
+    // Pooled thumbnail the mini player draws from
+    private Bitmap miniArt;
+    private BitmapDrawable miniArtDrawable;
     private TextView miniSongTitle;
     private ImageButton miniPlayPause;
 
@@ -117,6 +151,26 @@ public class MainActivity extends Activity {
     private int autoPlayIndex = -1;
     private final Handler mainHandler = new Handler();
 
+    // Newest DATE_ADDED/DATE_MODIFIED read so far; written by one loader
+    // thread at a time, read by others when saving the no-art list
+    private volatile long mediaWatermark = 0;
+    private boolean mediaObserverRegistered = false;
+    private boolean mediaRefreshRunning = false;
+    private boolean mediaRefreshPending = false;
+
+    private final Runnable mediaRefresh = new Runnable() {
+        public void run() {
+            startMediaRefresh();
+        }
+    };
+
+    private final ContentObserver mediaObserver = new ContentObserver(mainHandler) {
+        public void onChange(boolean selfChange) {
+            mainHandler.removeCallbacks(mediaRefresh);
+            mainHandler.postDelayed(mediaRefresh, MEDIA_REFRESH_DELAY_MS);
+        }
+    };
+
     private ServiceConnection serviceConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName name, IBinder service) {
             MusicService.MusicBinder binder = (MusicService.MusicBinder) service;
@@ -172,9 +226,12 @@ public class MainActivity extends Activity {
         tabSongs = (TextView) findViewById(R.id.tabSongs);
         tabArtists = (TextView) findViewById(R.id.tabArtists);
         tabAlbums = (TextView) findViewById(R.id.tabAlbums);
+        tabGenres = (TextView) findViewById(R.id.tabGenres);
+        tabYears = (TextView) findViewById(R.id.tabYears);
+        tabFolders = (TextView) findViewById(R.id.tabFolders);
         tabPlaylists = (TextView) findViewById(R.id.tabPlaylists);
+        tabScroller = (HorizontalScrollView) findViewById(R.id.tabScroller);
         tabIndicator = findViewById(R.id.tabIndicator);
-        tabIndicatorSpacer = findViewById(R.id.tabIndicatorSpacer);
 
         // Main views
         songListView = (ListView) findViewById(R.id.songList);
@@ -198,6 +255,10 @@ public class MainActivity extends Activity {
         songAdapter = new SongAdapter(this, filteredSongs);
         categoryAdapter = new CategoryAdapter(this, categoryNames, categoryCounts);
         songListView.setAdapter(songAdapter);
+        songListView.setFastScrollEnabled(true);
+        songListView.setRecyclerListener(SongAdapter.ART_RECYCLER);
+        songListView.setOnScrollListener(new SongAdapter.ArtScrollListener(this));
+        updateTabIndicator();
 
         searchLabel.setText("Loading...");
         noMusicText.setVisibility(View.GONE);
@@ -208,10 +269,14 @@ public class MainActivity extends Activity {
         new Thread(new Runnable() {
             public void run() {
                 loadSongs();
-                sortSongs();
+                final AlbumArtCache artCache = AlbumArtCache.getInstance(MainActivity.this);
+                forgetChangedNoArt(artCache, artCache.loadNoArt());
+                AlbumArtLocator.install(AlbumArtLocator.load(getContentResolver()));
+                final LibrarySnapshot loaded = LibrarySnapshot.build(allSongs);
                 // Show songs immediately with filename-based titles
                 mainHandler.post(new Runnable() {
                     public void run() {
+                        library = loaded;
                         buildSongsByPath();
                         updateFilteredList("");
                         updateUI();
@@ -230,13 +295,20 @@ public class MainActivity extends Activity {
                 });
                 // Enhance metadata in background, then refresh UI
                 enhanceMetadata(allSongs);
-                sortSongs();
+                final LibrarySnapshot enhanced = LibrarySnapshot.build(allSongs);
+                artCache.saveNoArt(mediaWatermark);
                 mainHandler.post(new Runnable() {
                     public void run() {
                         if (isFinishing()) return;
+                        library = enhanced;
                         buildSongsByPath();
                         updateFilteredList(currentQuery);
                         updateToolbarLabel();
+                        startThumbnailWarmer();
+                        // From here on, new and rewritten files are merged in as they arrive
+                        getContentResolver().registerContentObserver(
+                                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mediaObserver);
+                        mediaObserverRegistered = true;
                     }
                 });
             }
@@ -258,6 +330,12 @@ public class MainActivity extends Activity {
                     switchTab(TAB_ARTISTS);
                 } else if (id == R.id.tabAlbums) {
                     switchTab(TAB_ALBUMS);
+                } else if (id == R.id.tabGenres) {
+                    switchTab(TAB_GENRES);
+                } else if (id == R.id.tabYears) {
+                    switchTab(TAB_YEARS);
+                } else if (id == R.id.tabFolders) {
+                    switchTab(TAB_FOLDERS);
                 } else if (id == R.id.tabPlaylists) {
                     switchTab(TAB_PLAYLISTS);
                 }
@@ -266,6 +344,9 @@ public class MainActivity extends Activity {
         tabSongs.setOnClickListener(tabClickListener);
         tabArtists.setOnClickListener(tabClickListener);
         tabAlbums.setOnClickListener(tabClickListener);
+        tabGenres.setOnClickListener(tabClickListener);
+        tabYears.setOnClickListener(tabClickListener);
+        tabFolders.setOnClickListener(tabClickListener);
         tabPlaylists.setOnClickListener(tabClickListener);
 
         searchButton.setOnClickListener(new View.OnClickListener() {
@@ -285,8 +366,8 @@ public class MainActivity extends Activity {
 
         sortButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                currentSort = (currentSort + 1) % 3;
-                sortSongs();
+                // Each mode is a cached permutation in the snapshot; nothing to sort
+                currentSort = (currentSort + 1) % LibrarySnapshot.SORT_MODE_COUNT;
                 refreshCurrentView();
                 updateSortButtonText();
             }
@@ -352,6 +433,11 @@ public class MainActivity extends Activity {
     }
 
     protected void onDestroy() {
+        mainHandler.removeCallbacks(mediaRefresh);
+        if (mediaObserverRegistered) {
+            getContentResolver().unregisterContentObserver(mediaObserver);
+            mediaObserverRegistered = false;
+        }
         if (serviceBound) {
             if (musicService != null) {
                 musicService.setOnMiniPlayerUpdateListener(null);
@@ -359,6 +445,21 @@ public class MainActivity extends Activity {
             unbindService(serviceConnection);
             serviceBound = false;
         }
+        // Never leave the shared loader paused by a fling cut short
+        ArtLoader.getInstance(this).setPaused(false);
+        // Keep albums found to have no art while browsing for the next launch
+        final AlbumArtCache artCache = AlbumArtCache.getInstance(this);
+        final long watermark = mediaWatermark;
+        new Thread(new Runnable() {
+            public void run() {
+                artCache.saveNoArt(watermark);
+            }
+        }).start();
+        if (miniArt != null) {
+            miniAlbumArt.setImageResource(R.drawable.ic_default_album);
+            BitmapPool.getInstance().releaseBitmap(miniArt);
+            miniArt = null;
+        }
         if (playlistDb != null) {
             try {
                 playlistDb.close();
@@ -369,9 +470,22 @@ public class MainActivity extends Activity {
         super.onDestroy();
     }
 
+    public void onLowMemory() {
+        super.onLowMemory();
+        AlbumArtCache cache = AlbumArtCache.getInstance(this);
+        cache.logStats();
+        cache.trimFull();
+    }
+
     public void onBackPressed() {
         if (inSubView) {
             exitSubView();
+        } else if (currentTab == TAB_FOLDERS && getCurrentFolder() != library.getFolders().getRoot()) {
+            FolderIndex folders = library.getFolders();
+            folderPath = folders.getPath(folders.getParent(getCurrentFolder()));
+            currentQuery = "";
+            clearButton.setVisibility(View.GONE);
+            loadFoldersTab();
         } else {
             super.onBackPressed();
         }
@@ -470,6 +584,10 @@ public class MainActivity extends Activity {
         currentTab = tab;
         inSubView = false;
         subViewKey = "";
+        subViewGroupKey = 0;
+        folderPath = null;
+        subViewFolderPath = null;
+        subViewRange = null;
         currentQuery = "";
         clearButton.setVisibility(View.GONE);
 
@@ -486,6 +604,15 @@ public class MainActivity extends Activity {
             case TAB_ALBUMS:
                 loadAlbumsTab();
                 break;
+            case TAB_GENRES:
+                loadGroupTab(library.getGenreGroups());
+                break;
+            case TAB_YEARS:
+                loadGroupTab(library.getYearGroups());
+                break;
+            case TAB_FOLDERS:
+                loadFoldersTab();
+                break;
             case TAB_PLAYLISTS:
                 loadPlaylistsTab();
                 break;
@@ -496,38 +623,44 @@ public class MainActivity extends Activity {
         tabSongs.setTextColor(currentTab == TAB_SONGS ? 0xFF4CAF50 : 0xFFAAAAAA);
         tabArtists.setTextColor(currentTab == TAB_ARTISTS ? 0xFF4CAF50 : 0xFFAAAAAA);
         tabAlbums.setTextColor(currentTab == TAB_ALBUMS ? 0xFF4CAF50 : 0xFFAAAAAA);
+        tabGenres.setTextColor(currentTab == TAB_GENRES ? 0xFF4CAF50 : 0xFFAAAAAA);
+        tabYears.setTextColor(currentTab == TAB_YEARS ? 0xFF4CAF50 : 0xFFAAAAAA);
+        tabFolders.setTextColor(currentTab == TAB_FOLDERS ? 0xFF4CAF50 : 0xFFAAAAAA);
         tabPlaylists.setTextColor(currentTab == TAB_PLAYLISTS ? 0xFF4CAF50 : 0xFFAAAAAA);
     }
 
     private void updateTabIndicator() {
-        // Adjust indicator weight: indicator takes 1 part, spacer takes 3 parts
-        // Position determined by which tab is active
-        LinearLayout.LayoutParams indicatorParams =
-                (LinearLayout.LayoutParams) tabIndicator.getLayoutParams();
-        LinearLayout.LayoutParams spacerParams =
-                (LinearLayout.LayoutParams) tabIndicatorSpacer.getLayoutParams();
-
-        // We need left spacer + indicator + right spacer
-        // Remove old views and rebuild
-        LinearLayout container = (LinearLayout) tabIndicator.getParent();
-        container.removeAllViews();
-
-        if (currentTab > 0) {
-            View leftSpacer = new View(this);
-            LinearLayout.LayoutParams lp = new LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.MATCH_PARENT, currentTab);
-            leftSpacer.setLayoutParams(lp);
-            container.addView(leftSpacer);
-        }
-
-        tabIndicator.setLayoutParams(new LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.MATCH_PARENT, 1));
-        container.addView(tabIndicator);
+        // Tabs only have a position once laid out, so measure after the next layout pass
+        tabScroller.post(new Runnable() {
+            public void run() {
+                View tab = getTabView(currentTab);
+                FrameLayout.LayoutParams params = new FrameLayout.LayoutParams(
+                        tab.getWidth(), FrameLayout.LayoutParams.MATCH_PARENT);
+                params.leftMargin = tab.getLeft();
+                tabIndicator.setLayoutParams(params);
+                // Keep the active tab in view when the bar scrolls
+                int centered = tab.getLeft() - (tabScroller.getWidth() - tab.getWidth()) / 2;
+                tabScroller.smoothScrollTo(Math.max(0, centered), 0);
+            }
+        });
+    }
 
-        int rightWeight = 3 - currentTab;
-        if (rightWeight > 0) {
-            View rightSpacer = new View(this);
-            LinearLayout.LayoutParams rp = new LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.MATCH_PARENT, rightWeight);
-            rightSpacer.setLayoutParams(rp);
-            container.addView(rightSpacer);
+    private TextView getTabView(int tab) {
+        switch (tab) {
+            case TAB_ARTISTS:
+                return tabArtists;
+            case TAB_ALBUMS:
+                return tabAlbums;
+            case TAB_GENRES:
+                return tabGenres;
+            case TAB_YEARS:
+                return tabYears;
+            case TAB_FOLDERS:
+                return tabFolders;
+            case TAB_PLAYLISTS:
+                return tabPlaylists;
+            default:
+                return tabSongs;
         }
     }
 
@@ -544,68 +677,125 @@ public class MainActivity extends Activity {
     }
 
     private void loadArtistsTab() {
+        loadGroupTab(library.getArtistGroups());
+    }
+
+    private void loadAlbumsTab() {
+        loadGroupTab(library.getAlbumGroups());
+    }
+
+    // Groups are prebuilt with the snapshot; rendering only copies the visible slice
+    private void loadGroupTab(GroupIndex groups) {
         subViewHeader.setVisibility(View.GONE);
         toolbar.setVisibility(View.VISIBLE);
         sortButton.setVisibility(View.GONE);
 
-        // Build unique artist list with counts
-        LinkedHashMap<String, Integer> artistMap = new LinkedHashMap<String, Integer>();
-        for (int i = 0; i < allSongs.size(); i++) {
-            String artist = allSongs.get(i).getArtist();
-            Integer count = artistMap.get(artist);
-            artistMap.put(artist, count == null ? 1 : count + 1);
-        }
-
         categoryNames.clear();
         categoryCounts.clear();
-        for (Map.Entry<String, Integer> entry : artistMap.entrySet()) {
-            String name = entry.getKey();
-            if (currentQuery.length() > 0 && !name.toLowerCase().contains(currentQuery.toLowerCase())) {
+        categoryDurations.clear();
+        categoryDetails.clear();
+        categoryGroups.clear();
+        String lowerQuery = currentQuery.toLowerCase();
+        for (int g = 0; g < groups.size(); g++) {
+            if (lowerQuery.length() > 0 && !groups.nameContains(g, lowerQuery)) {
                 continue;
             }
-            categoryNames.add(name);
-            categoryCounts.add(entry.getValue());
+            categoryNames.add(groups.getName(g));
+            categoryCounts.add(groups.getCount(g));
+            categoryDurations.add(groups.getTotalDuration(g));
+            categoryDetails.add(groups.getDetail(g));
+            categoryGroups.add(g);
         }
 
         categoryAdapter = new CategoryAdapter(this, categoryNames, categoryCounts);
+        categoryAdapter.setDurations(categoryDurations);
+        categoryAdapter.setDetails(categoryDetails);
+        categoryAdapter.setSections(lowerQuery.length() > 0
+                ? groups.getSections().subset(categoryGroups) : groups.getSections());
         songListView.setAdapter(categoryAdapter);
+        resetFastScroll();
 
         noMusicText.setVisibility(categoryNames.isEmpty() ? View.VISIBLE : View.GONE);
         songListView.setVisibility(categoryNames.isEmpty() ? View.GONE : View.VISIBLE);
         updateToolbarLabel();
     }
 
-    private void loadAlbumsTab() {
-        subViewHeader.setVisibility(View.GONE);
+    // Lists the subfolders of the current folder; the header plays its whole subtree
+    private void loadFoldersTab() {
+        FolderIndex folders = library.getFolders();
+        int folder = getCurrentFolder();
+        subViewTitle.setText(folders.getName(folder));
+        subViewHeader.setVisibility(View.VISIBLE);
         toolbar.setVisibility(View.VISIBLE);
         sortButton.setVisibility(View.GONE);
 
-        LinkedHashMap<String, Integer> albumMap = new LinkedHashMap<String, Integer>();
-        for (int i = 0; i < allSongs.size(); i++) {
-            String album = allSongs.get(i).getAlbum();
-            Integer count = albumMap.get(album);
-            albumMap.put(album, count == null ? 1 : count + 1);
-        }
-
         categoryNames.clear();
         categoryCounts.clear();
-        for (Map.Entry<String, Integer> entry : albumMap.entrySet()) {
-            String name = entry.getKey();
-            if (currentQuery.length() > 0 && !name.toLowerCase().contains(currentQuery.toLowerCase())) {
+        categoryDurations.clear();
+        categoryDetails.clear();
+        categoryGroups.clear();
+        String lowerQuery = currentQuery.toLowerCase();
+        int[] children = folders.getChildren(folder);
+        // Files sitting next to subfolders get a row of their own
+        int direct = folders.getDirectSongCount(folder);
+        if (direct > 0 && children.length > 0 && lowerQuery.length() == 0) {
+            categoryNames.add(getString(R.string.folder_files));
+            categoryCounts.add(direct);
+            categoryDurations.add(folders.getDirectDuration(folder));
+            categoryDetails.add(null);
+            categoryGroups.add(-1);
+        }
+        for (int i = 0; i < children.length; i++) {
+            int child = children[i];
+            String name = folders.getName(child);
+            if (lowerQuery.length() > 0 && !name.toLowerCase().contains(lowerQuery)) {
                 continue;
             }
             categoryNames.add(name);
-            categoryCounts.add(entry.getValue());
+            categoryCounts.add(folders.getSongCount(child));
+            categoryDurations.add(folders.getTotalDuration(child));
+            categoryDetails.add(null);
+            categoryGroups.add(child);
         }
 
         categoryAdapter = new CategoryAdapter(this, categoryNames, categoryCounts);
+        categoryAdapter.setDurations(categoryDurations);
+        categoryAdapter.setDetails(categoryDetails);
         songListView.setAdapter(categoryAdapter);
+        resetFastScroll();
 
         noMusicText.setVisibility(categoryNames.isEmpty() ? View.VISIBLE : View.GONE);
         songListView.setVisibility(categoryNames.isEmpty() ? View.GONE : View.VISIBLE);
         updateToolbarLabel();
     }
 
+    private int getCurrentFolder() {
+        FolderIndex folders = library.getFolders();
+        int folder = folders.find(folderPath);
+        return folder >= 0 ? folder : folders.getRoot();
+    }
+
+    private void onFolderClick(int position) {
+        FolderIndex folders = library.getFolders();
+        int folder = categoryGroups.get(position);
+        if (folder < 0) {
+            enterFolderSubView(getCurrentFolder());
+        } else if (folders.getChildren(folder).length == 0) {
+            enterFolderSubView(folder);
+        } else {
+            folderPath = folders.getPath(folder);
+            currentQuery = "";
+            clearButton.setVisibility(View.GONE);
+            loadFoldersTab();
+        }
+    }
+
+    private void enterFolderSubView(int folder) {
+        FolderIndex folders = library.getFolders();
+        subViewFolderPath = folders.getPath(folder);
+        enterSubView(folders.getName(folder));
+    }
+
     private void loadPlaylistsTab() {
         subViewHeader.setVisibility(View.GONE);
         toolbar.setVisibility(View.VISIBLE);
@@ -639,6 +829,7 @@ public class MainActivity extends Activity {
 
         categoryAdapter = new CategoryAdapter(this, categoryNames, categoryCounts);
         songListView.setAdapter(categoryAdapter);
+        resetFastScroll();
 
         noMusicText.setVisibility(View.GONE);
         songListView.setVisibility(View.VISIBLE);
@@ -652,18 +843,25 @@ public class MainActivity extends Activity {
         subViewKey = key;
 
         subViewSongs.clear();
+        subViewRange = null;
 
-        if (currentTab == TAB_ARTISTS) {
-            for (int i = 0; i < allSongs.size(); i++) {
-                if (allSongs.get(i).getArtist().equals(key)) {
-                    subViewSongs.add(allSongs.get(i));
-                }
+        GroupIndex groups = getCurrentGroups();
+        if (groups != null) {
+            int group = subViewGroupKey != 0 ? groups.findKey(subViewGroupKey) : -1;
+            if (group < 0) {
+                group = groups.find(key);
             }
-        } else if (currentTab == TAB_ALBUMS) {
-            for (int i = 0; i < allSongs.size(); i++) {
-                if (allSongs.get(i).getAlbum().equals(key)) {
-                    subViewSongs.add(allSongs.get(i));
-                }
+            if (group >= 0) {
+                // Members are stored in album (disc, track) order: O(group size)
+                groups.appendMembers(group, library.getSongs(), subViewSongs);
+            }
+        } else if (currentTab == TAB_FOLDERS) {
+            FolderIndex folders = library.getFolders();
+            int folder = folders.find(subViewFolderPath);
+            if (folder >= 0) {
+                // Already in folder order; the service can play the range itself
+                subViewRange = folders.getDirectSongs(folder);
+                subViewSongs.addAll(subViewRange);
             }
         } else if (currentTab == TAB_PLAYLISTS && playlistDb != null) {
             ArrayList<String> paths = playlistDb.getPlaylistSongPaths(key);
@@ -675,25 +873,26 @@ public class MainActivity extends Activity {
             }
         }
 
-        // Apply search filter within sub-view
-        if (currentQuery.length() > 0) {
+        // Apply search filter within sub-view; the group is small, so check each song
+        LibraryQuery query = LibraryQuery.parse(currentQuery);
+        if (!query.isEmpty()) {
             ArrayList<Song> filtered = new ArrayList<Song>();
-            String lowerQuery = currentQuery.toLowerCase();
             for (int i = 0; i < subViewSongs.size(); i++) {
                 Song s = subViewSongs.get(i);
-                if (s.getTitle().toLowerCase().contains(lowerQuery)
-                        || s.getArtist().toLowerCase().contains(lowerQuery)) {
+                if (query.matches(s)) {
                     filtered.add(s);
                 }
             }
             subViewSongs.clear();
             subViewSongs.addAll(filtered);
+            subViewRange = null;
         }
 
         subViewTitle.setText(key);
         subViewHeader.setVisibility(View.VISIBLE);
         toolbar.setVisibility(View.VISIBLE);
-        sortButton.setVisibility(View.VISIBLE);
+        // Artist and album views always play in album order
+        sortButton.setVisibility(currentTab == TAB_PLAYLISTS ? View.VISIBLE : View.GONE);
 
         // Create a new adapter for sub-view songs
         SongAdapter subAdapter = new SongAdapter(this, subViewSongs);
@@ -704,15 +903,41 @@ public class MainActivity extends Activity {
             }
         }
         songListView.setAdapter(subAdapter);
+        resetFastScroll();
 
         updateToolbarLabel();
         noMusicText.setVisibility(subViewSongs.isEmpty() ? View.VISIBLE : View.GONE);
         songListView.setVisibility(subViewSongs.isEmpty() ? View.GONE : View.VISIBLE);
     }
 
+    private void enterGroupSubView(int group) {
+        GroupIndex groups = getCurrentGroups();
+        subViewGroupKey = groups.getKey(group);
+        enterSubView(groups.getName(group));
+    }
+
+    /** The grouping behind the current tab, or null for songs and playlists. */
+    private GroupIndex getCurrentGroups() {
+        switch (currentTab) {
+            case TAB_ARTISTS:
+                return library.getArtistGroups();
+            case TAB_ALBUMS:
+                return library.getAlbumGroups();
+            case TAB_GENRES:
+                return library.getGenreGroups();
+            case TAB_YEARS:
+                return library.getYearGroups();
+            default:
+                return null;
+        }
+    }
+
     private void exitSubView() {
         inSubView = false;
         subViewKey = "";
+        subViewGroupKey = 0;
+        subViewFolderPath = null;
+        subViewRange = null;
         currentQuery = "";
         clearButton.setVisibility(View.GONE);
         subViewHeader.setVisibility(View.GONE);
@@ -727,6 +952,15 @@ public class MainActivity extends Activity {
             case TAB_ALBUMS:
                 loadAlbumsTab();
                 break;
+            case TAB_GENRES:
+                loadGroupTab(library.getGenreGroups());
+                break;
+            case TAB_YEARS:
+                loadGroupTab(library.getYearGroups());
+                break;
+            case TAB_FOLDERS:
+                loadFoldersTab();
+                break;
             case TAB_PLAYLISTS:
                 loadPlaylistsTab();
                 break;
@@ -739,7 +973,7 @@ public class MainActivity extends Activity {
         if (inSubView) {
             // Playing from sub-view song list
             if (position < subViewSongs.size() && serviceBound) {
-                musicService.setSongList(subViewSongs);
+                setServiceSongs();
                 musicService.playSongAtIndex(position);
                 Intent intent = new Intent(this, PlayerActivity.class);
                 startActivity(intent);
@@ -751,13 +985,13 @@ public class MainActivity extends Activity {
                 Intent intent = new Intent(this, PlayerActivity.class);
                 startActivity(intent);
             }
-        } else if (currentTab == TAB_ARTISTS) {
-            if (position < categoryNames.size()) {
-                enterSubView(categoryNames.get(position));
+        } else if (currentTab == TAB_FOLDERS) {
+            if (position < categoryGroups.size()) {
+                onFolderClick(position);
             }
-        } else if (currentTab == TAB_ALBUMS) {
-            if (position < categoryNames.size()) {
-                enterSubView(categoryNames.get(position));
+        } else if (getCurrentGroups() != null) {
+            if (position < categoryGroups.size()) {
+                enterGroupSubView(categoryGroups.get(position));
             }
         } else if (currentTab == TAB_PLAYLISTS) {
             if (position < categoryNames.size()) {
@@ -774,7 +1008,15 @@ public class MainActivity extends Activity {
     // --- Play Sub-View Songs ---
 
     private void playSubViewSongs(boolean shuffle) {
-        if (subViewSongs.isEmpty() || !serviceBound) return;
+        if (!serviceBound) return;
+        // The folder list header plays the whole subtree, one contiguous range
+        List<Song> folderRange = null;
+        if (currentTab == TAB_FOLDERS && !inSubView) {
+            folderRange = library.getFolders().getSubtreeSongs(getCurrentFolder());
+            if (folderRange.isEmpty()) return;
+        } else if (subViewSongs.isEmpty()) {
+            return;
+        }
         if (shuffle) {
             if (!musicService.isShuffleOn()) {
                 musicService.toggleShuffle();
@@ -784,17 +1026,113 @@ public class MainActivity extends Activity {
                 musicService.toggleShuffle();
             }
         }
-        musicService.setSongList(subViewSongs);
+        if (folderRange != null) {
+            musicService.setSongRange(folderRange);
+        } else {
+            setServiceSongs();
+        }
         musicService.playSongAtIndex(0);
         Intent intent = new Intent(this, PlayerActivity.class);
         startActivity(intent);
     }
 
+    private void setServiceSongs() {
+        if (subViewRange != null) {
+            musicService.setSongRange(subViewRange);
+        } else {
+            musicService.setSongList(subViewSongs);
+        }
+    }
+
     // --- Song Loading ---
 
     private void loadSongs() {
         allSongs.clear();
+        filesystemPaths.clear();
         ContentResolver resolver = getContentResolver();
+        queryMediaSongs(resolver, MUSIC_SELECTION, null, allSongs);
+        // Genres live in a separate table; read them in bulk rather than per tab open
+        MediaGenres.load(resolver, "external", allSongs);
+        Log.i(TAG, "Loaded " + allSongs.size() + " songs from MediaStore");
+
+        java.util.HashSet<String> knownPaths = new java.util.HashSet<String>();
+        for (int i = 0; i < allSongs.size(); i++) {
+            String p = allSongs.get(i).getPath();
+            knownPaths.add(normalizePath(p));
+        }
+
+        String[] scanDirs = {
+            "/mnt/emmc/Music",
+            "/mnt/sdcard/Music"
+        };
+        int fsCount = 0;
+        MediaMetadataRetriever mmr = null;
+        for (int d = 0; d < scanDirs.length; d++) {
+            java.io.File dir = new java.io.File(scanDirs[d]);
+            if (dir.exists() && dir.isDirectory()) {
+                java.io.File[] files = dir.listFiles();
+                if (files != null) {
+                    for (int f = 0; f < files.length; f++) {
+                        java.io.File file = files[f];
+                        if (!file.isFile()) continue;
+                        String filePath = file.getAbsolutePath();
+                        if (knownPaths.contains(normalizePath(filePath))) continue;
+                        String name = file.getName().toLowerCase();
+                        if (!name.endsWith(".mp3") && !name.endsWith(".m4a")
+                                && !name.endsWith(".ogg") && !name.endsWith(".wav")
+                                && !name.endsWith(".flac") && !name.endsWith(".aac")
+                                && !name.endsWith(".wma")) {
+                            continue;
+                        }
+                        knownPaths.add(normalizePath(filePath));
+                        String title = file.getName();
+                        int dotIdx = title.lastIndexOf('.');
+                        if (dotIdx > 0) {
+                            title = title.substring(0, dotIdx);
+                        }
+                        // The album tag is part of the album key, so read it before any
+                        // snapshot hands the song to the art loaders
+                        if (mmr == null) {
+                            mmr = new MediaMetadataRetriever();
+                        }
+                        String album = null;
+                        try {
+                            mmr.setDataSource(filePath);
+                            album = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
+                        } catch (Exception e) {
+                            try { mmr.release(); } catch (Exception ignored) {}
+                            mmr = null;
+                        }
+                        Song song = new Song(filePath.hashCode(), title,
+                                "Unknown", album != null && album.length() > 0 ? album : "Unknown",
+                                0, filePath, 0);
+                        // No MediaStore row: the file's mtime stands in for both dates
+                        long mtime = file.lastModified() / 1000;
+                        song.setDateAdded(mtime);
+                        song.setDateModified(mtime);
+                        allSongs.add(song);
+                        filesystemPaths.add(normalizePath(filePath));
+                        fsCount++;
+                    }
+                }
+            }
+        }
+        if (mmr != null) {
+            try { mmr.release(); } catch (Exception ignored) {}
+        }
+        if (fsCount > 0) {
+            Log.i(TAG, "Found " + fsCount + " additional songs from filesystem scan");
+        }
+        Log.i(TAG, "Total songs: " + allSongs.size());
+    }
+
+    /**
+     * Appends the MediaStore rows matching {@code selection}, one per path,
+     * and raises {@link #mediaWatermark} to the newest date seen, but never
+     * past the current time.
+     */
+    private void queryMediaSongs(ContentResolver resolver, String selection,
+                                 String[] selectionArgs, ArrayList<Song> out) {
         Uri[] uris = {
             MediaStore.Audio.Media.EXTERNAL_CONTENT_URI
         };
@@ -806,15 +1144,20 @@ public class MainActivity extends Activity {
             MediaStore.Audio.Media.ALBUM_ID,
             MediaStore.Audio.Media.DATA,
             MediaStore.Audio.Media.DURATION,
-            MediaStore.Audio.Media.MIME_TYPE
+            MediaStore.Audio.Media.MIME_TYPE,
+            MediaStore.Audio.Media.TRACK,
+            MediaStore.Audio.Media.YEAR,
+            MediaStore.Audio.Media.DATE_ADDED,
+            MediaStore.Audio.Media.DATE_MODIFIED
         };
-        String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0 OR "
-                + MediaStore.Audio.Media.MIME_TYPE + " LIKE 'audio/%'";
         java.util.HashSet<String> seenPaths = new java.util.HashSet<String>();
+        long newest = mediaWatermark;
+        // A file stamped in the future must not hide everything added before then
+        long now = System.currentTimeMillis() / 1000;
         for (int u = 0; u < uris.length; u++) {
             Cursor cursor = null;
             try {
-                cursor = resolver.query(uris[u], projection, selection, null, null);
+                cursor = resolver.query(uris[u], projection, selection, selectionArgs, null);
                 if (cursor != null && cursor.moveToFirst()) {
                     int idCol = cursor.getColumnIndex(MediaStore.Audio.Media._ID);
                     int titleCol = cursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
@@ -823,6 +1166,10 @@ public class MainActivity extends Activity {
                     int albumIdCol = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
                     int dataCol = cursor.getColumnIndex(MediaStore.Audio.Media.DATA);
                     int durationCol = cursor.getColumnIndex(MediaStore.Audio.Media.DURATION);
+                    int trackCol = cursor.getColumnIndex(MediaStore.Audio.Media.TRACK);
+                    int yearCol = cursor.getColumnIndex(MediaStore.Audio.Media.YEAR);
+                    int addedCol = cursor.getColumnIndex(MediaStore.Audio.Media.DATE_ADDED);
+                    int modifiedCol = cursor.getColumnIndex(MediaStore.Audio.Media.DATE_MODIFIED);
 
                     do {
                         String path = cursor.getString(dataCol);
@@ -834,7 +1181,18 @@ public class MainActivity extends Activity {
                             String album = cursor.getString(albumCol);
                             long albumId = cursor.getLong(albumIdCol);
                             long duration = cursor.getLong(durationCol);
-                            allSongs.add(new Song(id, title, artist, album, albumId, path, duration));
+                            Song song = new Song(id, title, artist, album, albumId, path, duration);
+                            // MediaStore packs the disc number into TRACK as disc * 1000 + track
+                            int track = cursor.getInt(trackCol);
+                            song.setDisc(track / 1000);
+                            song.setTrack(track % 1000);
+                            song.setYear(cursor.getInt(yearCol));
+                            long added = cursor.getLong(addedCol);
+                            long modified = cursor.getLong(modifiedCol);
+                            song.setDateAdded(added);
+                            song.setDateModified(modified);
+                            newest = Math.max(newest, Math.min(Math.max(added, modified), now));
+                            out.add(song);
                         }
                     } while (cursor.moveToNext());
                 }
@@ -846,56 +1204,160 @@ public class MainActivity extends Activity {
                 }
             }
         }
-        Log.i(TAG, "Loaded " + allSongs.size() + " songs from MediaStore");
+        mediaWatermark = newest;
+    }
 
-        java.util.HashSet<String> knownPaths = new java.util.HashSet<String>();
-        for (int i = 0; i < allSongs.size(); i++) {
-            String p = allSongs.get(i).getPath();
-            knownPaths.add(normalizePath(p));
+    // One refresh thread at a time; changes seen meanwhile trigger another pass
+    private void startMediaRefresh() {
+        if (mediaRefreshRunning) {
+            mediaRefreshPending = true;
+            return;
         }
-
-        String[] scanDirs = {
-            "/mnt/emmc/Music",
-            "/mnt/sdcard/Music"
-        };
-        int fsCount = 0;
-        for (int d = 0; d < scanDirs.length; d++) {
-            java.io.File dir = new java.io.File(scanDirs[d]);
-            if (dir.exists() && dir.isDirectory()) {
-                java.io.File[] files = dir.listFiles();
-                if (files != null) {
-                    for (int f = 0; f < files.length; f++) {
-                        java.io.File file = files[f];
-                        if (!file.isFile()) continue;
-                        String filePath = file.getAbsolutePath();
-                        if (knownPaths.contains(normalizePath(filePath))) continue;
-                        String name = file.getName().toLowerCase();
-                        if (!name.endsWith(".mp3") && !name.endsWith(".m4a")
-                                && !name.endsWith(".ogg") && !name.endsWith(".wav")
-                                && !name.endsWith(".flac") && !name.endsWith(".aac")
-                                && !name.endsWith(".wma")) {
-                            continue;
+        mediaRefreshRunning = true;
+        new Thread(new Runnable() {
+            public void run() {
+                final LibrarySnapshot updated = loadMediaChanges();
+                mainHandler.post(new Runnable() {
+                    public void run() {
+                        mediaRefreshRunning = false;
+                        if (isFinishing()) return;
+                        if (updated != null) {
+                            library = updated;
+                            buildSongsByPath();
+                            refreshCurrentView();
+                            startThumbnailWarmer();
                         }
-                        knownPaths.add(normalizePath(filePath));
-                        String title = file.getName();
-                        int dotIdx = title.lastIndexOf('.');
-                        if (dotIdx > 0) {
-                            title = title.substring(0, dotIdx);
+                        if (mediaRefreshPending) {
+                            mediaRefreshPending = false;
+                            startMediaRefresh();
                         }
-                        allSongs.add(new Song(filePath.hashCode(), title,
-                                "Unknown", "Unknown", 0, filePath, 0));
-                        fsCount++;
                     }
+                });
+            }
+        }).start();
+    }
+
+    /** Warms thumbnails album by album in the order the song list shows them. */
+    private void startThumbnailWarmer() {
+        ArrayList<Song> order = new ArrayList<Song>();
+        library.appendSorted(currentSort, order);
+        ThumbnailWarmer.getInstance(this).setSongs(order);
+    }
+
+    /**
+     * Reads only the rows added or rewritten since the last load, enriches
+     * them, and folds them into {@link #allSongs}: rewritten paths replace
+     * their old entry, new paths are appended. Songs MediaStore no longer
+     * lists, and scanned files that are gone, are dropped. Only the queries
+     * are limited to the changes; the snapshot is rebuilt in full from the
+     * merged list. Returns it, or null if nothing changed.
+     */
+    private LibrarySnapshot loadMediaChanges() {
+        ContentResolver resolver = getContentResolver();
+        String since = String.valueOf(mediaWatermark);
+        ArrayList<Song> changed = new ArrayList<Song>();
+        queryMediaSongs(resolver, MUSIC_SELECTION + " AND (" + MediaStore.Audio.Media.DATE_ADDED
+                + " > ? OR " + MediaStore.Audio.Media.DATE_MODIFIED + " > ?)",
+                new String[] { since, since }, changed);
+        int removed = removeDeletedSongs(resolver);
+        if (changed.isEmpty() && removed == 0) return null;
+        MediaGenres.load(resolver, "external", changed);
+        enhanceMetadata(changed);
+
+        HashMap<String, Integer> positions = new HashMap<String, Integer>(allSongs.size() * 2);
+        for (int i = 0; i < allSongs.size(); i++) {
+            positions.put(normalizePath(allSongs.get(i).getPath()), i);
+        }
+        // The current snapshot holds its own list, so replacing entries here is safe
+        ThumbnailStore thumbnails = ThumbnailStore.getInstance(this);
+        AlbumArtCache artCache = AlbumArtCache.getInstance(this);
+        for (int i = 0; i < changed.size(); i++) {
+            Song song = changed.get(i);
+            // A rewritten or newly added file may bring new art for its album
+            thumbnails.invalidate(song.getAlbumKey());
+            artCache.invalidate(song.getAlbumKey());
+            // A scanned file MediaStore has caught up with is its song from now on
+            filesystemPaths.remove(normalizePath(song.getPath()));
+            Integer existing = positions.get(normalizePath(song.getPath()));
+            if (existing != null) {
+                allSongs.set(existing, song);
+            } else {
+                positions.put(normalizePath(song.getPath()), allSongs.size());
+                allSongs.add(song);
+            }
+        }
+        Log.i(TAG, "Merged " + changed.size() + " new or changed songs, removed " + removed);
+        AlbumArtLocator.install(AlbumArtLocator.load(resolver));
+        artCache.saveNoArt(mediaWatermark);
+        return LibrarySnapshot.build(allSongs);
+    }
+
+    /**
+     * Drops songs whose MediaStore row is gone, or whose file is gone for
+     * songs found by the filesystem scan. Lists only the paths, which is far
+     * cheaper than reading rows. Returns how many were dropped; none if the
+     * listing failed, so a bad query never empties the library.
+     */
+    private int removeDeletedSongs(ContentResolver resolver) {
+        java.util.HashSet<String> listed = new java.util.HashSet<String>(allSongs.size() * 2);
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    new String[] { MediaStore.Audio.Media.DATA }, MUSIC_SELECTION, null, null);
+            if (cursor == null) return 0;
+            while (cursor.moveToNext()) {
+                String path = cursor.getString(0);
+                if (path != null) {
+                    listed.add(normalizePath(path));
                 }
             }
+        } catch (Exception e) {
+            Log.e(TAG, "Error listing MediaStore songs", e);
+            return 0;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
         }
-        if (fsCount > 0) {
-            Log.i(TAG, "Found " + fsCount + " additional songs from filesystem scan");
+
+        // The current snapshot holds its own list, so compacting this one is safe
+        int kept = 0;
+        for (int i = 0; i < allSongs.size(); i++) {
+            Song song = allSongs.get(i);
+            String path = normalizePath(song.getPath());
+            boolean gone;
+            if (filesystemPaths.contains(path)) {
+                gone = !new java.io.File(song.getPath()).exists();
+                if (gone) filesystemPaths.remove(path);
+            } else {
+                gone = !listed.contains(path);
+            }
+            if (!gone) {
+                allSongs.set(kept++, song);
+            }
+        }
+        int removed = allSongs.size() - kept;
+        allSongs.subList(kept, allSongs.size()).clear();
+        return removed;
+    }
+
+    /**
+     * Drops saved no-art entries for albums with songs added or modified
+     * after {@code savedWatermark}, since those may have brought art.
+     */
+    private void forgetChangedNoArt(AlbumArtCache cache, long savedWatermark) {
+        if (savedWatermark == 0) return;
+        for (int i = 0; i < allSongs.size(); i++) {
+            Song song = allSongs.get(i);
+            if (Math.max(song.getDateAdded(), song.getDateModified()) > savedWatermark) {
+                cache.invalidate(song.getAlbumKey());
+            }
         }
-        Log.i(TAG, "Total songs: " + allSongs.size());
     }
 
     private void enhanceMetadata(ArrayList<Song> songs) {
+        ThumbnailStore thumbnails = ThumbnailStore.getInstance(this);
+        AlbumArtCache artCache = AlbumArtCache.getInstance(this);
         MediaMetadataRetriever mmr = new MediaMetadataRetriever();
         for (int i = 0; i < songs.size(); i++) {
             Song song = songs.get(i);
@@ -906,13 +1368,33 @@ public class MainActivity extends Activity {
                 song.setTitle(title);
 
                 String artist = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
+                String albumArtist = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUMARTIST);
                 if (artist == null || artist.length() == 0) {
-                    artist = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUMARTIST);
+                    artist = albumArtist;
                 }
                 song.setArtist(artist);
+                song.setAlbumArtist(albumArtist);
 
                 String album = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
+                long oldKey = song.getAlbumKey();
                 song.setAlbum(album);
+                if (song.getAlbumKey() != oldKey) {
+                    // Art stored under the old key would never be looked up again
+                    thumbnails.invalidate(oldKey);
+                    artCache.invalidate(oldKey);
+                }
+
+                // Tags look like "3/12" or "2004-05-01"; only the leading number matters
+                song.setTrack(parseLeadingInt(
+                        mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER)));
+                song.setDisc(parseLeadingInt(
+                        mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DISC_NUMBER)));
+                song.setYear(parseLeadingInt(
+                        mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_YEAR)));
+                // MediaStore's genre table already maps ID3v1 numbers to names
+                if (song.getGenre() == null) {
+                    song.setGenre(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_GENRE));
+                }
 
                 String durStr = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
                 if (durStr != null) {
@@ -929,6 +1411,21 @@ public class MainActivity extends Activity {
         try { mmr.release(); } catch (Exception ignored) {}
     }
 
+    private static int parseLeadingInt(String value) {
+        if (value == null) return 0;
+        int result = 0;
+        int i = 0;
+        while (i < value.length() && Character.isWhitespace(value.charAt(i))) {
+            i++;
+        }
+        int start = i;
+        while (i < value.length() && i - start < 9 && Character.isDigit(value.charAt(i))) {
+            result = result * 10 + (value.charAt(i) - '0');
+            i++;
+        }
+        return result;
+    }
+
     private static String normalizePath(String path) {
         if (path != null && path.startsWith("/sdcard/")) {
             return "/mnt/sdcard/" + path.substring(8);
@@ -938,59 +1435,38 @@ public class MainActivity extends Activity {
 
     private void buildSongsByPath() {
         songsByPath.clear();
-        for (int i = 0; i < allSongs.size(); i++) {
-            Song song = allSongs.get(i);
+        ArrayList<Song> songs = library.getSongs();
+        for (int i = 0; i < songs.size(); i++) {
+            Song song = songs.get(i);
             songsByPath.put(song.getPath(), song);
         }
     }
 
-    private void sortSongs() {
-        Comparator<Song> comparator;
-        switch (currentSort) {
-            case SORT_ARTIST:
-                comparator = new Comparator<Song>() {
-                    public int compare(Song a, Song b) {
-                        return a.getArtist().compareToIgnoreCase(b.getArtist());
-                    }
-                };
-                break;
-            case SORT_ALBUM:
-                comparator = new Comparator<Song>() {
-                    public int compare(Song a, Song b) {
-                        return a.getAlbum().compareToIgnoreCase(b.getAlbum());
-                    }
-                };
-                break;
-            default:
-                comparator = new Comparator<Song>() {
-                    public int compare(Song a, Song b) {
-                        return a.getTitle().compareToIgnoreCase(b.getTitle());
-                    }
-                };
-                break;
-        }
-        Collections.sort(allSongs, comparator);
-    }
-
     private void updateFilteredList(String query) {
         filteredSongs.clear();
-        if (query == null || query.length() == 0) {
-            filteredSongs.addAll(allSongs);
+        LibraryQuery parsed = LibraryQuery.parse(query);
+        SectionIndex sections = library.getSections(currentSort);
+        if (parsed.isEmpty()) {
+            library.appendSorted(currentSort, filteredSongs);
         } else {
-            String lowerQuery = query.toLowerCase();
-            for (int i = 0; i < allSongs.size(); i++) {
-                Song song = allSongs.get(i);
-                if (song.getTitle().toLowerCase().contains(lowerQuery)
-                        || song.getArtist().toLowerCase().contains(lowerQuery)
-                        || song.getAlbum().toLowerCase().contains(lowerQuery)) {
-                    filteredSongs.add(song);
-                }
-            }
+            // Index lookups give the hits; the cached permutation orders them
+            IntList positions = new IntList();
+            library.appendSorted(currentSort, parsed.execute(library.getQueryIndex()),
+                    filteredSongs, positions);
+            sections = sections.subset(positions);
         }
+        songAdapter.setSections(sections);
         songAdapter.notifyDataSetChanged();
+        resetFastScroll();
         updateUI();
     }
 
+    // Gingerbread's FastScroller reads sections once; recreate it when they change
+    private void resetFastScroll() {
+        songListView.setFastScrollEnabled(false);
+        songListView.setFastScrollEnabled(true);
+    }
+
     private void refreshCurrentView() {
         if (inSubView) {
             enterSubView(subViewKey);
@@ -1005,6 +1481,15 @@ public class MainActivity extends Activity {
                 case TAB_ALBUMS:
                     loadAlbumsTab();
                     break;
+                case TAB_GENRES:
+                    loadGroupTab(library.getGenreGroups());
+                    break;
+                case TAB_YEARS:
+                    loadGroupTab(library.getYearGroups());
+                    break;
+                case TAB_FOLDERS:
+                    loadFoldersTab();
+                    break;
                 case TAB_PLAYLISTS:
                     loadPlaylistsTab();
                     break;
@@ -1014,15 +1499,17 @@ public class MainActivity extends Activity {
 
     @SuppressWarnings("deprecation")
     private void showSearchDialog() {
-        final EditText input = new EditText(this);
+        final AutoCompleteTextView input = new AutoCompleteTextView(this);
         input.setInputType(android.text.InputType.TYPE_CLASS_TEXT
                 | android.text.InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS
                 | android.text.InputType.TYPE_TEXT_VARIATION_FILTER);
         input.setText(currentQuery);
         input.setHint(R.string.search_hint);
         input.setSingleLine(true);
+        input.setThreshold(1);
+        input.setAdapter(new SuggestionAdapter(this, library.getSuggestions()));
 
-        AlertDialog dialog = new AlertDialog.Builder(this)
+        final AlertDialog dialog = new AlertDialog.Builder(this)
                 .setTitle("Search")
                 .setView(input)
                 .setPositiveButton("Search", new DialogInterface.OnClickListener() {
@@ -1043,9 +1530,50 @@ public class MainActivity extends Activity {
                 })
                 .setNegativeButton("Cancel", null)
                 .create();
+
+        // Picking a suggestion jumps straight to its view instead of filtering
+        input.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                final SuggestionIndex.Suggestion suggestion =
+                        (SuggestionIndex.Suggestion) parent.getAdapter().getItem(position);
+                dialog.dismiss();
+                mainHandler.post(new Runnable() {
+                    public void run() {
+                        openSuggestion(suggestion);
+                    }
+                });
+            }
+        });
         dialog.show();
     }
 
+    private void openSuggestion(SuggestionIndex.Suggestion suggestion) {
+        switch (suggestion.getType()) {
+            case SuggestionIndex.TYPE_ARTIST:
+                switchTab(TAB_ARTISTS);
+                enterSubView(suggestion.getValue());
+                break;
+            case SuggestionIndex.TYPE_ALBUM:
+                switchTab(TAB_ALBUMS);
+                if (library.getAlbumGroups().countNamed(suggestion.getValue()) == 1) {
+                    enterSubView(suggestion.getValue());
+                } else {
+                    // Several albums share the name: list them instead of guessing
+                    currentQuery = suggestion.getValue();
+                    clearButton.setVisibility(View.VISIBLE);
+                    refreshCurrentView();
+                }
+                break;
+            default:
+                switchTab(TAB_SONGS);
+                currentQuery = suggestion.getValue();
+                clearButton.setVisibility(View.VISIBLE);
+                refreshCurrentView();
+                updateToolbarLabel();
+                break;
+        }
+    }
+
     private void updateUI() {
         int count = filteredSongs.size();
         updateToolbarLabel();
@@ -1069,6 +1597,12 @@ public class MainActivity extends Activity {
             searchLabel.setText(categoryNames.size() + " artists");
         } else if (currentTab == TAB_ALBUMS) {
             searchLabel.setText(categoryNames.size() + " albums");
+        } else if (currentTab == TAB_GENRES) {
+            searchLabel.setText(categoryNames.size() + " genres");
+        } else if (currentTab == TAB_YEARS) {
+            searchLabel.setText(categoryNames.size() + " years");
+        } else if (currentTab == TAB_FOLDERS) {
+            searchLabel.setText(library.getFolders().getSongCount(getCurrentFolder()) + " songs");
         } else if (currentTab == TAB_PLAYLISTS) {
             int count = categoryNames.size() > 0 ? categoryNames.size() - 1 : 0;
             searchLabel.setText(count + " playlists");
@@ -1086,6 +1620,12 @@ public class MainActivity extends Activity {
             case SORT_ALBUM:
                 sortButton.setText(R.string.sort_album);
                 break;
+            case SORT_ADDED:
+                sortButton.setText(R.string.sort_added);
+                break;
+            case SORT_MODIFIED:
+                sortButton.setText(R.string.sort_modified);
+                break;
         }
     }
 
@@ -1113,15 +1653,14 @@ public class MainActivity extends Activity {
         }
 
         // Load mini album art from cache
-        AlbumArtCache cache = AlbumArtCache.getInstance();
-        long albumId = current.getAlbumId();
-        if (cache.contains(albumId)) {
-            Bitmap bmp = cache.get(albumId);
-            if (bmp != null) {
-                miniAlbumArt.setImageBitmap(bmp);
-            } else {
-                miniAlbumArt.setImageResource(R.drawable.ic_default_album);
-            }
+        if (miniArt == null) {
+            miniArt = BitmapPool.getInstance().acquireBitmap();
+            miniArtDrawable = new BitmapDrawable(getResources(), miniArt);
+        }
+        if (AlbumArtCache.getInstance(this).copyThumb(current.getAlbumKey(), miniArt)
+                == AlbumArtCache.HIT) {
+            miniAlbumArt.setImageDrawable(miniArtDrawable);
+            miniAlbumArt.invalidate();
         } else {
             miniAlbumArt.setImageResource(R.drawable.ic_default_album);
         }
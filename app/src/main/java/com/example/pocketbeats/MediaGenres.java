@@ -0,0 +1,142 @@
+package com.example.pocketbeats;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads MediaStore genre membership for a volume and assigns each song its
+ * genre. One query lists the genres and, where the provider supports it, one
+ * more returns every membership row; older providers need a members query
+ * per genre. A song in several genres keeps the first one seen.
+ */
+public class MediaGenres {
+
+    private static final String TAG = "MediaGenres";
+
+    // "genres/all/members" first appears in the Honeycomb media provider
+    private static final int SDK_ALL_MEMBERS = 11;
+
+    /** {@code songs} are matched by MediaStore id; others are left alone. */
+    public static void load(ContentResolver resolver, String volume, List<Song> songs) {
+        LongIntMap songsById = new LongIntMap(songs.size());
+        for (int i = 0; i < songs.size(); i++) {
+            songsById.put(songs.get(i).getId(), i);
+        }
+
+        LongIntMap genresById = new LongIntMap();
+        ArrayList<String> names = new ArrayList<String>();
+        long[] ids = readGenres(resolver, volume, genresById, names);
+        if (names.isEmpty()) return;
+
+        int assigned = -1;
+        if (Build.VERSION.SDK_INT >= SDK_ALL_MEMBERS) {
+            assigned = readAllMembers(resolver, volume, songs, songsById, genresById, names);
+        }
+        if (assigned < 0) {
+            assigned = 0;
+            for (int g = 0; g < ids.length; g++) {
+                assigned += readMembers(resolver, volume, ids[g], names.get(g), songs, songsById);
+            }
+        }
+        Log.i(TAG, "Assigned " + assigned + " songs to " + names.size() + " genres");
+    }
+
+    private static long[] readGenres(ContentResolver resolver, String volume,
+                                     LongIntMap genresById, ArrayList<String> names) {
+        long[] ids = new long[16];
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(MediaStore.Audio.Genres.getContentUri(volume),
+                    new String[] { MediaStore.Audio.Genres._ID, MediaStore.Audio.Genres.NAME },
+                    null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    String name = cursor.getString(1);
+                    if (name == null || name.trim().length() == 0) continue;
+                    int g = names.size();
+                    if (g == ids.length) {
+                        ids = Arrays.copyOf(ids, g * 2);
+                    }
+                    ids[g] = cursor.getLong(0);
+                    genresById.put(ids[g], g);
+                    names.add(name.trim());
+                } while (cursor.moveToNext());
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading genres", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return Arrays.copyOf(ids, names.size());
+    }
+
+    /** Returns the number of songs assigned, or -1 if the query is unsupported. */
+    private static int readAllMembers(ContentResolver resolver, String volume, List<Song> songs,
+                                      LongIntMap songsById, LongIntMap genresById,
+                                      ArrayList<String> names) {
+        Uri uri = Uri.parse("content://media/" + volume + "/audio/genres/all/members");
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(uri, new String[] {
+                    MediaStore.Audio.Genres.Members.AUDIO_ID,
+                    MediaStore.Audio.Genres.Members.GENRE_ID }, null, null, null);
+            if (cursor == null) return -1;
+            int assigned = 0;
+            while (cursor.moveToNext()) {
+                int song = songsById.get(cursor.getLong(0), -1);
+                int genre = genresById.get(cursor.getLong(1), -1);
+                if (assign(songs, song, genre < 0 ? null : names.get(genre))) {
+                    assigned++;
+                }
+            }
+            return assigned;
+        } catch (Exception e) {
+            Log.w(TAG, "Batched genre members query failed, falling back", e);
+            return -1;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static int readMembers(ContentResolver resolver, String volume, long genreId,
+                                   String name, List<Song> songs, LongIntMap songsById) {
+        Cursor cursor = null;
+        int assigned = 0;
+        try {
+            cursor = resolver.query(MediaStore.Audio.Genres.Members.getContentUri(volume, genreId),
+                    new String[] { MediaStore.Audio.Genres.Members.AUDIO_ID }, null, null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                if (assign(songs, songsById.get(cursor.getLong(0), -1), name)) {
+                    assigned++;
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading members of genre " + name, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return assigned;
+    }
+
+    private static boolean assign(List<Song> songs, int index, String name) {
+        if (index < 0 || name == null) return false;
+        Song song = songs.get(index);
+        if (song.getGenre() != null) return false;
+        song.setGenre(name);
+        return true;
+    }
+}
@@ -18,6 +18,7 @@ import android.os.PowerManager;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 public class MusicService extends Service implements
@@ -38,8 +39,10 @@ public class MusicService extends Service implements
     private MediaPlayer player;
     private final IBinder binder = new MusicBinder();
 
-    private ArrayList<Song> songList = new ArrayList<Song>();
-    private ArrayList<Song> playQueue = new ArrayList<Song>();
+    private List<Song> songList = new ArrayList<Song>();
+    private List<Song> playQueue = new ArrayList<Song>();
+    // False while playQueue is songList itself; copied before the first edit
+    private boolean queueOwned = false;
     private int currentIndex = 0;
     private boolean isPrepared = false;
     private boolean shuffleOn = false;
@@ -158,23 +161,37 @@ public class MusicService extends Service implements
     }
 
     public void setSongList(ArrayList<Song> songs) {
-        this.songList = new ArrayList<Song>(songs);
+        setSongRange(new ArrayList<Song>(songs));
+    }
+
+    /**
+     * Plays from a list the caller never modifies, such as a range of the
+     * library snapshot. The list is used as is; nothing is copied until the
+     * queue is shuffled or edited.
+     */
+    public void setSongRange(List<Song> songs) {
+        this.songList = songs;
         buildQueue();
     }
 
     private void buildQueue() {
-        playQueue = new ArrayList<Song>(songList);
-        if (shuffleOn && playQueue.size() > 0) {
+        if (shuffleOn && songList.size() > 0) {
             Song current = null;
             if (currentIndex >= 0 && currentIndex < playQueue.size()) {
                 current = playQueue.get(currentIndex);
             }
-            shuffleList(playQueue);
+            ArrayList<Song> shuffled = new ArrayList<Song>(songList);
+            shuffleList(shuffled);
             if (current != null) {
-                playQueue.remove(current);
-                playQueue.add(0, current);
+                shuffled.remove(current);
+                shuffled.add(0, current);
                 currentIndex = 0;
             }
+            playQueue = shuffled;
+            queueOwned = true;
+        } else {
+            playQueue = songList;
+            queueOwned = false;
         }
     }
 
@@ -218,6 +235,10 @@ public class MusicService extends Service implements
         if (insertAt > playQueue.size()) {
             insertAt = playQueue.size();
         }
+        if (!queueOwned) {
+            playQueue = new ArrayList<Song>(playQueue);
+            queueOwned = true;
+        }
         playQueue.add(insertAt, song);
     }
 
@@ -449,6 +470,28 @@ public class MusicService extends Service implements
         return playQueue.get(currentIndex);
     }
 
+    /**
+     * Returns up to {@code count} songs that will play after the current
+     * one, following the repeat mode.
+     */
+    public List<Song> getUpcomingSongs(int count) {
+        ArrayList<Song> upcoming = new ArrayList<Song>(count);
+        if (repeatMode == REPEAT_ONE || currentIndex < 0 || currentIndex >= playQueue.size()) {
+            return upcoming;
+        }
+        int index = currentIndex;
+        while (upcoming.size() < count) {
+            index++;
+            if (index >= playQueue.size()) {
+                if (repeatMode != REPEAT_ALL) break;
+                index = 0;
+            }
+            if (index == currentIndex) break;
+            upcoming.add(playQueue.get(index));
+        }
+        return upcoming;
+    }
+
     public boolean isShuffleOn() {
         return shuffleOn;
     }
@@ -2,14 +2,10 @@ package com.example.pocketbeats;
 
 import android.app.Activity;
 import android.content.ComponentName;
-import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.media.AudioManager;
-import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
@@ -25,14 +21,16 @@ import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.VideoView;
 
-import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.util.List;
 
 public class PlayerActivity extends Activity {
 
     private static final String TAG = "PlayerActivity";
     private static final int UPDATE_SEEKBAR = 1;
     private static final int UPDATE_INTERVAL = 500;
+    // Upcoming tracks whose art is decoded ahead of a skip
+    private static final int PREFETCH_AHEAD = 2;
 
     private MusicService musicService;
     private boolean serviceBound = false;
@@ -50,7 +48,21 @@ public class PlayerActivity extends Activity {
     private ImageView bgFallback;
 
     private boolean userDragging = false;
-    private Bitmap currentAlbumBitmap = null;
+    // Reference to the art on screen, released once the view stops showing it
+    private BitmapHandle currentAlbumArt = null;
+    // Album whose art should be on screen; late results for others are ignored
+    private long artAlbumId = 0;
+
+    private final FullArtLoader.Callback artCallback = new FullArtLoader.Callback() {
+        public void onFullArtLoaded(long albumId, BitmapHandle art) {
+            if (art == null) return;
+            if (albumId != artAlbumId || isFinishing()) {
+                art.release();
+                return;
+            }
+            showAlbumArt(art);
+        }
+    };
 
     private final SeekBarHandler handler = new SeekBarHandler(this);
 
@@ -291,7 +303,8 @@ public class PlayerActivity extends Activity {
             unbindService(serviceConnection);
             serviceBound = false;
         }
-        recycleAlbumBitmap();
+        FullArtLoader.getInstance(this).cancel(artCallback);
+        clearAlbumArt();
         super.onDestroy();
     }
 
@@ -301,7 +314,7 @@ public class PlayerActivity extends Activity {
             public void run() {
                 playerTitle.setText(song.getTitle());
                 playerArtist.setText(song.getArtist());
-                loadAlbumArt(song.getAlbumId());
+                loadAlbumArt(song);
                 if (serviceBound) {
                     int duration = musicService.getDuration();
                     seekBar.setMax(duration);
@@ -323,54 +336,54 @@ public class PlayerActivity extends Activity {
         });
     }
 
-    private void loadAlbumArt(long albumId) {
-        recycleAlbumBitmap();
-
-        try {
-            Uri albumArtUri = ContentUris.withAppendedId(
-                    Uri.parse("content://media/external/audio/albumart"), albumId);
-            InputStream is = getContentResolver().openInputStream(albumArtUri);
-            if (is != null) {
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inJustDecodeBounds = true;
-                BitmapFactory.decodeStream(is, null, opts);
-                is.close();
-
-                int size = 480;
-                int inSampleSize = 1;
-                if (opts.outHeight > size || opts.outWidth > size) {
-                    int halfH = opts.outHeight / 2;
-                    int halfW = opts.outWidth / 2;
-                    while ((halfH / inSampleSize) >= size && (halfW / inSampleSize) >= size) {
-                        inSampleSize *= 2;
-                    }
-                }
-
-                is = getContentResolver().openInputStream(albumArtUri);
-                if (is != null) {
-                    BitmapFactory.Options opts2 = new BitmapFactory.Options();
-                    opts2.inSampleSize = inSampleSize;
-                    currentAlbumBitmap = BitmapFactory.decodeStream(is, null, opts2);
-                    is.close();
-                }
+    /**
+     * Shows cached art at once, otherwise the placeholder until the
+     * background decode lands. Art for the next tracks is decoded ahead.
+     */
+    private void loadAlbumArt(Song song) {
+        long albumId = song.getAlbumKey();
+        artAlbumId = albumId;
+        AlbumArtCache cache = AlbumArtCache.getInstance(this);
+        BitmapHandle cached = cache.acquireFull(albumId);
+        if (cached != null) {
+            showAlbumArt(cached);
+        } else {
+            clearAlbumArt();
+            albumArt.setImageResource(R.drawable.ic_default_album);
+            if (!cache.isNoArt(albumId)) {
+                FullArtLoader.getInstance(this).load(song, artCallback);
+            }
+        }
+        prefetchUpcomingArt();
+    }
 
-                if (currentAlbumBitmap != null) {
-                    albumArt.setImageBitmap(currentAlbumBitmap);
-                    return;
-                }
+    private void prefetchUpcomingArt() {
+        if (!serviceBound || musicService == null) return;
+        FullArtLoader loader = FullArtLoader.getInstance(this);
+        List<Song> upcoming = musicService.getUpcomingSongs(PREFETCH_AHEAD);
+        for (int i = 0; i < upcoming.size(); i++) {
+            Song next = upcoming.get(i);
+            if (next.getAlbumKey() != artAlbumId) {
+                loader.prefetch(next);
             }
-        } catch (Exception e) {
-            Log.d(TAG, "No album art for albumId=" + albumId);
         }
+    }
 
-        albumArt.setImageResource(R.drawable.ic_default_album);
+    /** Takes over the caller's reference to {@code art}. */
+    private void showAlbumArt(BitmapHandle art) {
+        albumArt.setImageBitmap(art.getBitmap());
+        if (currentAlbumArt != null) {
+            currentAlbumArt.release();
+        }
+        currentAlbumArt = art;
     }
 
-    private void recycleAlbumBitmap() {
-        if (currentAlbumBitmap != null) {
+    /** The view lets go of the bitmap before its reference is dropped. */
+    private void clearAlbumArt() {
+        if (currentAlbumArt != null) {
             albumArt.setImageResource(R.drawable.ic_default_album);
-            currentAlbumBitmap.recycle();
-            currentAlbumBitmap = null;
+            currentAlbumArt.release();
+            currentAlbumArt = null;
         }
     }
 
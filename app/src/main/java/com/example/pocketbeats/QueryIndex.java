@@ -0,0 +1,242 @@
+package com.example.pocketbeats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-field posting lists over a library snapshot. Title, artist and album
+ * values are split into lowercase words; each word maps to the ascending
+ * snapshot indices of the songs containing it. Durations are kept as a sorted
+ * primitive array so range terms are two binary searches.
+ */
+public class QueryIndex {
+
+    public static final int FIELD_TITLE = 0;
+    public static final int FIELD_ARTIST = 1;
+    public static final int FIELD_ALBUM = 2;
+    public static final int FIELD_COUNT = 3;
+
+    public static final QueryIndex EMPTY = build(new ArrayList<Song>());
+
+    private final List<Song> songs;
+    private final FieldIndex[] fields;
+
+    // Durations ascending, with the snapshot index of each entry
+    private final long[] durations;
+    private final int[] durationSongs;
+
+    private QueryIndex(List<Song> songs, FieldIndex[] fields, long[] durations, int[] durationSongs) {
+        this.songs = songs;
+        this.fields = fields;
+        this.durations = durations;
+        this.durationSongs = durationSongs;
+    }
+
+    public static QueryIndex build(List<Song> songs) {
+        int n = songs.size();
+        FieldIndex[] fields = new FieldIndex[FIELD_COUNT];
+        for (int f = 0; f < FIELD_COUNT; f++) {
+            HashMap<String, IntList> postings = new HashMap<String, IntList>();
+            ArrayList<String> words = new ArrayList<String>();
+            for (int i = 0; i < n; i++) {
+                words.clear();
+                tokenize(fieldValue(songs.get(i), f), words);
+                for (int w = 0; w < words.size(); w++) {
+                    String word = words.get(w);
+                    IntList list = postings.get(word);
+                    if (list == null) {
+                        list = new IntList(4);
+                        postings.put(word, list);
+                    }
+                    // Songs are visited in order, so only the tail can repeat
+                    if (list.size() == 0 || list.get(list.size() - 1) != i) {
+                        list.add(i);
+                    }
+                }
+            }
+            fields[f] = FieldIndex.build(postings);
+        }
+
+        long[] packed = new long[n];
+        for (int i = 0; i < n; i++) {
+            // Duration in the high bits, index in the low 24: one primitive sort
+            long d = Math.max(0, Math.min(songs.get(i).getDuration(), 0xFFFFFFFFFFL));
+            packed[i] = (d << 24) | i;
+        }
+        Arrays.sort(packed);
+        long[] durations = new long[n];
+        int[] durationSongs = new int[n];
+        for (int i = 0; i < n; i++) {
+            durations[i] = packed[i] >>> 24;
+            durationSongs[i] = (int) (packed[i] & 0xFFFFFF);
+        }
+        return new QueryIndex(songs, fields, durations, durationSongs);
+    }
+
+    static String fieldValue(Song song, int field) {
+        switch (field) {
+            case FIELD_ARTIST:
+                return song.getArtist();
+            case FIELD_ALBUM:
+                return song.getAlbum();
+            default:
+                return song.getTitle();
+        }
+    }
+
+    /** Splits {@code value} into lowercase letter/digit runs. */
+    static void tokenize(String value, List<String> out) {
+        if (value == null) return;
+        String lower = value.toLowerCase();
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                out.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+
+    public int getSongCount() {
+        return songs.size();
+    }
+
+    public Song getSong(int index) {
+        return songs.get(index);
+    }
+
+    /**
+     * Number of postings for words starting with {@code prefix}; O(log words).
+     * A lower bound on {@link #lookupWordsContaining}, which is enough to plan by.
+     */
+    public int estimateWordPrefix(int field, String prefix) {
+        return fields[field].estimate(prefix);
+    }
+
+    /**
+     * Ascending snapshot indices of songs with a word in {@code field}
+     * containing {@code text}. Scans the field's word dictionary, which is
+     * far smaller than the library.
+     */
+    public int[] lookupWordsContaining(int field, String text) {
+        return fields[field].lookupContaining(text);
+    }
+
+    public int estimateDuration(long minMs, long maxMs) {
+        return durationUpperBound(maxMs) - durationLowerBound(minMs);
+    }
+
+    /** Ascending snapshot indices of songs with {@code minMs <= duration <= maxMs}. */
+    public int[] lookupDuration(long minMs, long maxMs) {
+        int lo = durationLowerBound(minMs);
+        int hi = durationUpperBound(maxMs);
+        if (lo >= hi) return new int[0];
+        int[] result = Arrays.copyOfRange(durationSongs, lo, hi);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private int durationLowerBound(long value) {
+        int lo = 0;
+        int hi = durations.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (durations[mid] < value) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private int durationUpperBound(long value) {
+        int lo = 0;
+        int hi = durations.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (durations[mid] <= value) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    /** Sorted word dictionary with CSR-style posting lists. */
+    private static class FieldIndex {
+        private final String[] words;
+        private final int[] offsets;
+        private final int[] postings;
+
+        FieldIndex(String[] words, int[] offsets, int[] postings) {
+            this.words = words;
+            this.offsets = offsets;
+            this.postings = postings;
+        }
+
+        static FieldIndex build(HashMap<String, IntList> map) {
+            String[] words = new String[map.size()];
+            int total = 0;
+            int w = 0;
+            for (Map.Entry<String, IntList> entry : map.entrySet()) {
+                words[w++] = entry.getKey();
+                total += entry.getValue().size();
+            }
+            Arrays.sort(words);
+            int[] offsets = new int[words.length + 1];
+            int[] postings = new int[total];
+            int pos = 0;
+            for (int i = 0; i < words.length; i++) {
+                offsets[i] = pos;
+                IntList list = map.get(words[i]);
+                for (int j = 0; j < list.size(); j++) {
+                    postings[pos++] = list.get(j);
+                }
+            }
+            offsets[words.length] = pos;
+            return new FieldIndex(words, offsets, postings);
+        }
+
+        int estimate(String prefix) {
+            int lo = lowerBound(prefix);
+            int hi = lowerBound(prefix + '\uffff');
+            return offsets[hi] - offsets[lo];
+        }
+
+        int[] lookupContaining(String text) {
+            IntList hits = new IntList();
+            int matched = 0;
+            for (int w = 0; w < words.length; w++) {
+                if (words[w].indexOf(text) >= 0) {
+                    for (int p = offsets[w]; p < offsets[w + 1]; p++) {
+                        hits.add(postings[p]);
+                    }
+                    matched++;
+                }
+            }
+            int[] result = hits.toArray();
+            if (matched > 1) {
+                // Several words matched: merge their lists and drop duplicates
+                Arrays.sort(result);
+                int unique = 0;
+                for (int i = 0; i < result.length; i++) {
+                    if (unique == 0 || result[unique - 1] != result[i]) {
+                        result[unique++] = result[i];
+                    }
+                }
+                result = Arrays.copyOf(result, unique);
+            }
+            return result;
+        }
+
+        private int lowerBound(String key) {
+            int lo = 0;
+            int hi = words.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (words[mid].compareTo(key) < 0) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.pocketbeats;
+
+import java.util.Arrays;
+
+/**
+ * Fast-scroll sections for a sorted list: one label per run of items sharing
+ * a first letter, plus the position where each run starts. Built once per
+ * list; the {@link android.widget.SectionIndexer} calls made while scrolling
+ * are array reads and a binary search, with no allocation.
+ */
+public class SectionIndex {
+
+    private static final String[] LETTERS = new String[26];
+    private static final String OTHER = "#";
+
+    static {
+        for (int i = 0; i < LETTERS.length; i++) {
+            LETTERS[i] = String.valueOf((char) ('A' + i));
+        }
+    }
+
+    // FastScroller expects at least one section
+    public static final SectionIndex NONE = new SectionIndex(new String[] { " " }, new int[] { 0 });
+
+    private final String[] sections;
+    private final int[] starts;
+
+    private SectionIndex(String[] sections, int[] starts) {
+        this.sections = sections;
+        this.starts = starts;
+    }
+
+    /** Shared label for a collation key: "A".."Z", or "#" for anything else. */
+    public static String labelOf(String collationKey) {
+        if (collationKey == null || collationKey.length() == 0) return OTHER;
+        char c = collationKey.charAt(0);
+        if (c >= 'a' && c <= 'z') return LETTERS[c - 'a'];
+        if (c >= 'A' && c <= 'Z') return LETTERS[c - 'A'];
+        return OTHER;
+    }
+
+    /** Shared label for the decade a year falls in, such as "1990s". */
+    public static String decadeOf(int year) {
+        // Interned so the builder can compare labels by identity
+        return ((year / 10 * 10) + "s").intern();
+    }
+
+    /** Add one label per list position, in list order. */
+    public static class Builder {
+        private String[] sections = new String[8];
+        private final IntList starts = new IntList();
+        private int position;
+
+        public void add(String label) {
+            int count = starts.size();
+            // Labels are shared constants, so identity is enough
+            if (count == 0 || sections[count - 1] != label) {
+                if (count == sections.length) {
+                    sections = Arrays.copyOf(sections, count * 2);
+                }
+                sections[count] = label;
+                starts.add(position);
+            }
+            position++;
+        }
+
+        public SectionIndex build() {
+            if (starts.size() == 0) return NONE;
+            return new SectionIndex(Arrays.copyOf(sections, starts.size()), starts.toArray());
+        }
+    }
+
+    /**
+     * Sections for a sub-list whose i-th item sits at {@code positions[i]}
+     * in the list this index was built for; one pass over the sub-list.
+     */
+    public SectionIndex subset(IntList positions) {
+        Builder builder = new Builder();
+        for (int i = 0; i < positions.size(); i++) {
+            builder.add(sections[getSectionForPosition(positions.get(i))]);
+        }
+        return builder.build();
+    }
+
+    public Object[] getSections() {
+        return sections;
+    }
+
+    public int getPositionForSection(int section) {
+        if (section < 0) return 0;
+        if (section >= starts.length) section = starts.length - 1;
+        return starts[section];
+    }
+
+    public int getSectionForPosition(int position) {
+        int lo = 0;
+        int hi = starts.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= position) lo = mid; else hi = mid - 1;
+        }
+        return lo;
+    }
+}
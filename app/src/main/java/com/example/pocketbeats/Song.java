@@ -10,6 +10,16 @@ public class Song implements Serializable {
     private long albumId;
     private String path;
     private long duration;
+    private String albumArtist;
+    private String genre;
+    private int year;
+    private int disc;
+    private int track;
+    // Seconds since the epoch, as MediaStore stores them
+    private long dateAdded;
+    private long dateModified;
+    // Volatile so a 32-bit VM never hands another thread half a key
+    private transient volatile long albumKey;
 
     public Song(long id, String title, String artist, String album, long albumId, String path, long duration) {
         this.id = id;
@@ -28,9 +38,49 @@ public class Song implements Serializable {
     public long getAlbumId() { return albumId; }
     public String getPath() { return path; }
     public long getDuration() { return duration; }
+    public String getAlbumArtist() { return albumArtist != null ? albumArtist : artist; }
+    /** Null when unknown. */
+    public String getGenre() { return genre; }
+    public int getYear() { return year; }
+    public int getDisc() { return disc; }
+    public int getTrack() { return track; }
+    public long getDateAdded() { return dateAdded; }
+    public long getDateModified() { return dateModified; }
 
     public void setTitle(String t) { if (t != null && t.length() > 0) this.title = t; }
     public void setArtist(String a) { if (a != null && a.length() > 0) this.artist = a; }
-    public void setAlbum(String a) { if (a != null && a.length() > 0) this.album = a; }
+    public void setAlbum(String a) { if (a != null && a.length() > 0) { this.album = a; this.albumKey = 0; } }
+    /**
+     * Album identity: the MediaStore album id, or for filesystem-scanned
+     * songs a stable negative id derived from the folder and album tag, so
+     * two different "Greatest Hits" never share a group or an art slot.
+     */
+    public long getAlbumKey() {
+        if (albumId > 0) return albumId;
+        if (albumKey == 0) {
+            String dir = "";
+            if (path != null) {
+                int slash = path.lastIndexOf('/');
+                dir = slash > 0 ? path.substring(0, slash) : path;
+            }
+            // 64-bit FNV-1a over folder + NUL + album
+            long h = 0xcbf29ce484222325L;
+            String source = dir + '\u0000' + album;
+            for (int i = 0; i < source.length(); i++) {
+                h ^= source.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            albumKey = -(h & Long.MAX_VALUE) - 1;
+        }
+        return albumKey;
+    }
+
     public void setDuration(long d) { if (d > 0) this.duration = d; }
+    public void setAlbumArtist(String a) { if (a != null && a.length() > 0) this.albumArtist = a; }
+    public void setGenre(String g) { if (g != null && g.trim().length() > 0) this.genre = g.trim(); }
+    public void setYear(int y) { if (y > 0) this.year = y; }
+    public void setDisc(int d) { if (d > 0) this.disc = d; }
+    public void setTrack(int t) { if (t > 0) this.track = t; }
+    public void setDateAdded(long d) { if (d > 0) this.dateAdded = d; }
+    public void setDateModified(long d) { if (d > 0) this.dateModified = d; }
 }
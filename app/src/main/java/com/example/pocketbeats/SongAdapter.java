@@ -1,27 +1,26 @@
 package com.example.pocketbeats;
 
-import android.content.ContentUris;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.net.Uri;
-import android.os.Handler;
+import android.graphics.drawable.BitmapDrawable;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.Adapter;
 import android.widget.ArrayAdapter;
 import android.widget.ImageView;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
-import java.io.InputStream;
 import java.util.List;
 
-public class SongAdapter extends ArrayAdapter<Song> {
+public class SongAdapter extends ArrayAdapter<Song> implements SectionIndexer {
 
     private final LayoutInflater inflater;
     private final Context context;
-    private final Handler mainHandler = new Handler();
     private String nowPlayingPath = null;
+    private SectionIndex sections = SectionIndex.NONE;
 
     public SongAdapter(Context context, List<Song> songs) {
         super(context, R.layout.item_song, songs);
@@ -34,8 +33,25 @@ public class SongAdapter extends ArrayAdapter<Song> {
         notifyDataSetChanged();
     }
 
+    /** Sections must describe the list currently backing the adapter. */
+    public void setSections(SectionIndex sections) {
+        this.sections = sections != null ? sections : SectionIndex.NONE;
+    }
+
+    public Object[] getSections() {
+        return sections.getSections();
+    }
+
+    public int getPositionForSection(int section) {
+        return sections.getPositionForSection(section);
+    }
+
+    public int getSectionForPosition(int position) {
+        return sections.getSectionForPosition(position);
+    }
+
     public View getView(int position, View convertView, ViewGroup parent) {
-        final ViewHolder holder;
+        ViewHolder holder;
         if (convertView == null) {
             convertView = inflater.inflate(R.layout.item_song, parent, false);
             holder = new ViewHolder();
@@ -65,126 +81,151 @@ public class SongAdapter extends ArrayAdapter<Song> {
                 holder.title.setTextColor(0xFFFFFFFF);
             }
 
-            // Album art with cache
-            final long albumId = song.getAlbumId();
-            holder.position = position;
-
-            AlbumArtCache cache = AlbumArtCache.getInstance();
-            if (cache.contains(albumId)) {
-                Bitmap cached = cache.get(albumId);
-                if (cached != null) {
-                    holder.albumArt.setImageBitmap(cached);
-                } else {
-                    holder.albumArt.setImageResource(R.drawable.ic_default_album);
-                }
-            } else {
-                // Set placeholder and load async
-                holder.albumArt.setImageResource(R.drawable.ic_default_album);
-                final int tagPosition = position;
-                new Thread(new Runnable() {
-                    public void run() {
-                        loadAlbumArtAsync(albumId, holder, tagPosition);
-                    }
-                }).start();
+            // Album art with cache; misses go to the shared loader
+            long albumId = song.getAlbumKey();
+            if (holder.artRequest != null) {
+                holder.artRequest.cancel();
+                holder.artRequest = null;
+            }
+
+            // Albums the locator already rules out keep the placeholder; copying
+            // them into the cache's no-art set would only churn it
+            if (holder.showArt(albumId) == AlbumArtCache.MISS
+                    && !AlbumArtLocator.getCurrent().hasNoArt(albumId)) {
+                holder.artRequest = ArtLoader.getInstance(context).load(song, holder);
             }
         }
 
         return convertView;
     }
 
-    private void loadAlbumArtAsync(final long albumId, final ViewHolder holder, final int tagPosition) {
-        final AlbumArtCache cache = AlbumArtCache.getInstance();
-
-        // Double-check cache (another thread may have loaded it)
-        if (cache.contains(albumId)) {
-            final Bitmap cached = cache.get(albumId);
-            mainHandler.post(new Runnable() {
-                public void run() {
-                    if (holder.position == tagPosition) {
-                        if (cached != null) {
-                            holder.albumArt.setImageBitmap(cached);
-                        } else {
-                            holder.albumArt.setImageResource(R.drawable.ic_default_album);
-                        }
-                    }
-                }
-            });
-            return;
-        }
+    private String formatTime(long millis) {
+        int totalSeconds = (int) (millis / 1000);
+        int minutes = totalSeconds / 60;
+        int seconds = totalSeconds % 60;
+        return minutes + ":" + (seconds < 10 ? "0" : "") + seconds;
+    }
 
-        Bitmap result = null;
-        try {
-            Uri albumArtUri = ContentUris.withAppendedId(
-                    Uri.parse("content://media/external/audio/albumart"), albumId);
-            InputStream is = context.getContentResolver().openInputStream(albumArtUri);
-            if (is != null) {
-                // First pass: get dimensions
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inJustDecodeBounds = true;
-                BitmapFactory.decodeStream(is, null, opts);
-                is.close();
-
-                // Calculate inSampleSize for 72px target
-                int targetSize = 72;
-                int inSampleSize = 1;
-                if (opts.outHeight > targetSize || opts.outWidth > targetSize) {
-                    int halfH = opts.outHeight / 2;
-                    int halfW = opts.outWidth / 2;
-                    while ((halfH / inSampleSize) >= targetSize && (halfW / inSampleSize) >= targetSize) {
-                        inSampleSize *= 2;
-                    }
-                }
+    /**
+     * Hands a scrapped row's thumbnail bitmap back to the pool and drops its
+     * pending load. Set on any list that shows this adapter.
+     */
+    public static final AbsListView.RecyclerListener ART_RECYCLER = new AbsListView.RecyclerListener() {
+        public void onMovedToScrapHeap(View view) {
+            Object tag = view.getTag();
+            if (tag instanceof ViewHolder) {
+                ((ViewHolder) tag).release();
+            }
+        }
+    };
+
+    /**
+     * Ties art loading to scroll state: nothing is decoded mid-fling, rows
+     * on screen load first once the list settles, then a few rows beyond
+     * it in the direction of travel are prefetched. The thumbnail warmer
+     * waits until the list is still.
+     */
+    public static class ArtScrollListener implements AbsListView.OnScrollListener {
+        private static final int PREFETCH_ROWS = 6;
+
+        private final ArtLoader loader;
+        private final ThumbnailWarmer warmer;
+        private int lastFirstVisible;
+        private int direction = 1;
+
+        public ArtScrollListener(Context context) {
+            loader = ArtLoader.getInstance(context);
+            warmer = ThumbnailWarmer.getInstance(context);
+        }
 
-                // Second pass: decode scaled
-                is = context.getContentResolver().openInputStream(albumArtUri);
-                if (is != null) {
-                    BitmapFactory.Options opts2 = new BitmapFactory.Options();
-                    opts2.inSampleSize = inSampleSize;
-                    result = BitmapFactory.decodeStream(is, null, opts2);
-                    is.close();
-                }
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+            if (scrollState != SCROLL_STATE_IDLE) {
+                loader.cancelPrefetches();
+            }
+            loader.setPaused(scrollState == SCROLL_STATE_FLING);
+            warmer.setScrolling(scrollState != SCROLL_STATE_IDLE);
+            if (scrollState == SCROLL_STATE_IDLE) {
+                prefetchAhead(view);
             }
-        } catch (Exception e) {
-            // No album art available
         }
 
-        if (result != null) {
-            // Scale to exact 72x72
-            final Bitmap scaled = Bitmap.createScaledBitmap(result, 72, 72, true);
-            if (scaled != result) {
-                result.recycle();
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                             int totalItemCount) {
+            if (firstVisibleItem > lastFirstVisible) {
+                direction = 1;
+            } else if (firstVisibleItem < lastFirstVisible) {
+                direction = -1;
             }
-            cache.put(albumId, scaled);
-            mainHandler.post(new Runnable() {
-                public void run() {
-                    if (holder.position == tagPosition) {
-                        holder.albumArt.setImageBitmap(scaled);
-                    }
-                }
-            });
-        } else {
-            cache.putNoArt(albumId);
-            mainHandler.post(new Runnable() {
-                public void run() {
-                    if (holder.position == tagPosition) {
-                        holder.albumArt.setImageResource(R.drawable.ic_default_album);
-                    }
-                }
-            });
+            lastFirstVisible = firstVisibleItem;
         }
-    }
 
-    private String formatTime(long millis) {
-        int totalSeconds = (int) (millis / 1000);
-        int minutes = totalSeconds / 60;
-        int seconds = totalSeconds % 60;
-        return minutes + ":" + (seconds < 10 ? "0" : "") + seconds;
+        private void prefetchAhead(AbsListView view) {
+            Adapter adapter = view.getAdapter();
+            if (adapter == null) return;
+            // Visible rows already queued their loads in getView, ahead of these
+            int position = direction > 0
+                    ? view.getLastVisiblePosition() + 1
+                    : view.getFirstVisiblePosition() - 1;
+            for (int i = 0; i < PREFETCH_ROWS; i++, position += direction) {
+                if (position < 0 || position >= adapter.getCount()) break;
+                Object item = adapter.getItem(position);
+                if (item instanceof Song) {
+                    loader.prefetch((Song) item);
+                }
+            }
+        }
     }
 
-    private static class ViewHolder {
+    private static class ViewHolder implements ArtLoader.Callback {
         ImageView albumArt;
         TextView title;
         TextView artist;
-        int position;
+        ArtLoader.Request artRequest;
+        // Pooled thumbnail this row draws from, and the drawable wrapping it
+        Bitmap art;
+        BitmapDrawable artDrawable;
+
+        public void onArtLoaded(long albumId, boolean hasArt) {
+            artRequest = null;
+            if (hasArt) {
+                showArt(albumId);
+            }
+        }
+
+        /** Shows cached art or the placeholder; returns the cache lookup result. */
+        int showArt(long albumId) {
+            if (art == null) {
+                art = BitmapPool.getInstance().acquireBitmap();
+            }
+            int result = AlbumArtCache.getInstance(albumArt.getContext()).copyThumb(albumId, art);
+            if (result != AlbumArtCache.HIT) {
+                showPlaceholder();
+                return result;
+            }
+            // The bitmap usually comes back from the pool to the row that released it
+            if (artDrawable == null || artDrawable.getBitmap() != art) {
+                artDrawable = new BitmapDrawable(albumArt.getResources(), art);
+            }
+            albumArt.setImageDrawable(artDrawable);
+            // Same drawable, new pixels
+            albumArt.invalidate();
+            return result;
+        }
+
+        void showPlaceholder() {
+            albumArt.setImageResource(R.drawable.ic_default_album);
+        }
+
+        void release() {
+            if (artRequest != null) {
+                artRequest.cancel();
+                artRequest = null;
+            }
+            if (art != null) {
+                showPlaceholder();
+                BitmapPool.getInstance().releaseBitmap(art);
+                art = null;
+            }
+        }
     }
 }
@@ -0,0 +1,113 @@
+package com.example.pocketbeats;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+
+public class SuggestionAdapter extends BaseAdapter implements Filterable {
+
+    private static final int MAX_SUGGESTIONS = 8;
+
+    private final LayoutInflater inflater;
+    private final SuggestionIndex index;
+    private ArrayList<SuggestionIndex.Suggestion> suggestions =
+            new ArrayList<SuggestionIndex.Suggestion>();
+
+    // Runs on the AutoCompleteTextView filter thread; the index is immutable
+    private final Filter filter = new Filter() {
+        protected FilterResults performFiltering(CharSequence constraint) {
+            FilterResults results = new FilterResults();
+            if (constraint != null) {
+                ArrayList<SuggestionIndex.Suggestion> found =
+                        index.lookup(constraint.toString(), MAX_SUGGESTIONS);
+                results.values = found;
+                results.count = found.size();
+            }
+            return results;
+        }
+
+        @SuppressWarnings("unchecked")
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            if (results != null && results.values != null) {
+                suggestions = (ArrayList<SuggestionIndex.Suggestion>) results.values;
+            } else {
+                suggestions = new ArrayList<SuggestionIndex.Suggestion>();
+            }
+            if (suggestions.isEmpty()) {
+                notifyDataSetInvalidated();
+            } else {
+                notifyDataSetChanged();
+            }
+        }
+
+        public CharSequence convertResultToString(Object resultValue) {
+            return ((SuggestionIndex.Suggestion) resultValue).getValue();
+        }
+    };
+
+    public SuggestionAdapter(Context context, SuggestionIndex index) {
+        this.inflater = LayoutInflater.from(context);
+        this.index = index;
+    }
+
+    public int getCount() {
+        return suggestions.size();
+    }
+
+    public SuggestionIndex.Suggestion getItem(int position) {
+        return suggestions.get(position);
+    }
+
+    public long getItemId(int position) {
+        return position;
+    }
+
+    public Filter getFilter() {
+        return filter;
+    }
+
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if (convertView == null) {
+            convertView = inflater.inflate(R.layout.item_category, parent, false);
+            holder = new ViewHolder();
+            holder.name = (TextView) convertView.findViewById(R.id.categoryName);
+            holder.detail = (TextView) convertView.findViewById(R.id.categoryCount);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+
+        SuggestionIndex.Suggestion suggestion = getItem(position);
+        holder.name.setText(suggestion.getValue());
+
+        String label;
+        switch (suggestion.getType()) {
+            case SuggestionIndex.TYPE_ARTIST:
+                label = "Artist";
+                break;
+            case SuggestionIndex.TYPE_ALBUM:
+                label = "Album";
+                break;
+            default:
+                label = "Song";
+                break;
+        }
+        int c = suggestion.getFrequency();
+        holder.detail.setText(label + " \u2022 " + (c == 1 ? "1 song" : c + " songs"));
+
+        return convertView;
+    }
+
+    private static class ViewHolder {
+        TextView name;
+        TextView detail;
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.pocketbeats;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sorted-array prefix index over the distinct artist, album and title values
+ * of the library. A lookup is two binary searches plus a top-N pass over a
+ * primitive frequency array, so it stays well under a millisecond per keystroke.
+ */
+public class SuggestionIndex {
+
+    public static final int TYPE_ARTIST = 0;
+    public static final int TYPE_ALBUM = 1;
+    public static final int TYPE_TITLE = 2;
+
+    public static final SuggestionIndex EMPTY =
+            new SuggestionIndex(new String[0], new String[0], new byte[0], new int[0]);
+
+    // Parallel arrays sorted by key
+    private final String[] keys;
+    private final String[] values;
+    private final byte[] types;
+    private final int[] frequencies;
+
+    public static class Suggestion {
+        private final int type;
+        private final String value;
+        private final int frequency;
+
+        Suggestion(int type, String value, int frequency) {
+            this.type = type;
+            this.value = value;
+            this.frequency = frequency;
+        }
+
+        public int getType() { return type; }
+        public String getValue() { return value; }
+        public int getFrequency() { return frequency; }
+
+        public String toString() {
+            return value;
+        }
+    }
+
+    private SuggestionIndex(String[] keys, String[] values, byte[] types, int[] frequencies) {
+        this.keys = keys;
+        this.values = values;
+        this.types = types;
+        this.frequencies = frequencies;
+    }
+
+    public static SuggestionIndex build(List<Song> songs) {
+        HashMap<String, int[]> artists = new HashMap<String, int[]>();
+        HashMap<String, int[]> albums = new HashMap<String, int[]>();
+        HashMap<String, int[]> titles = new HashMap<String, int[]>();
+        for (int i = 0; i < songs.size(); i++) {
+            Song song = songs.get(i);
+            countValue(artists, song.getArtist());
+            countValue(albums, song.getAlbum());
+            countValue(titles, song.getTitle());
+        }
+
+        int size = artists.size() + albums.size() + titles.size();
+        String[] rawKeys = new String[size];
+        String[] rawValues = new String[size];
+        byte[] rawTypes = new byte[size];
+        int[] rawFrequencies = new int[size];
+        int n = 0;
+        n = collect(artists, TYPE_ARTIST, rawKeys, rawValues, rawTypes, rawFrequencies, n);
+        n = collect(albums, TYPE_ALBUM, rawKeys, rawValues, rawTypes, rawFrequencies, n);
+        collect(titles, TYPE_TITLE, rawKeys, rawValues, rawTypes, rawFrequencies, n);
+
+        // Values were collected artists, albums, titles, so the stable sort
+        // breaks ties between equal keys by type
+        int[] order = IndexSort.sort(rawKeys);
+
+        String[] keys = new String[size];
+        String[] values = new String[size];
+        byte[] types = new byte[size];
+        int[] frequencies = new int[size];
+        for (int i = 0; i < size; i++) {
+            int src = order[i];
+            keys[i] = rawKeys[src];
+            values[i] = rawValues[src];
+            types[i] = rawTypes[src];
+            frequencies[i] = rawFrequencies[src];
+        }
+        return new SuggestionIndex(keys, values, types, frequencies);
+    }
+
+    private static void countValue(HashMap<String, int[]> counts, String value) {
+        int[] count = counts.get(value);
+        if (count == null) {
+            counts.put(value, new int[] { 1 });
+        } else {
+            count[0]++;
+        }
+    }
+
+    private static int collect(HashMap<String, int[]> counts, int type, String[] keys,
+                               String[] values, byte[] types, int[] frequencies, int n) {
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            keys[n] = entry.getKey().toLowerCase();
+            values[n] = entry.getKey();
+            types[n] = (byte) type;
+            frequencies[n] = entry.getValue()[0];
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns up to {@code limit} values starting with {@code prefix}, most
+     * frequent first. Ties keep alphabetical order.
+     */
+    public ArrayList<Suggestion> lookup(String prefix, int limit) {
+        ArrayList<Suggestion> result = new ArrayList<Suggestion>();
+        if (prefix == null || limit <= 0) return result;
+        String key = prefix.trim().toLowerCase();
+        if (key.length() == 0) return result;
+
+        int lo = lowerBound(key);
+        int hi = lowerBound(key + '\uffff');
+        if (lo >= hi) return result;
+
+        // Top-N by frequency with a small insertion buffer
+        int[] best = new int[Math.min(limit, hi - lo)];
+        int found = 0;
+        for (int i = lo; i < hi; i++) {
+            int freq = frequencies[i];
+            if (found == best.length && freq <= frequencies[best[found - 1]]) {
+                continue;
+            }
+            int pos = found < best.length ? found++ : found - 1;
+            while (pos > 0 && frequencies[best[pos - 1]] < freq) {
+                best[pos] = best[pos - 1];
+                pos--;
+            }
+            best[pos] = i;
+        }
+
+        for (int i = 0; i < found; i++) {
+            int idx = best[i];
+            result.add(new Suggestion(types[idx], values[idx], frequencies[idx]));
+        }
+        return result;
+    }
+
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
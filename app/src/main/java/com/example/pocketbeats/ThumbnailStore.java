@@ -0,0 +1,501 @@
+package com.example.pocketbeats;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Persistent store of pre-scaled list thumbnails, so a cold start does not
+ * have to decode full-size album art again. Thumbnails are fixed-size RGB565
+ * slots appended to a single data file; a memory-mapped open-addressing
+ * table maps album ids to slots. A hit is one positional read straight into
+ * the caller's pixel buffer, with no image decoding.
+ *
+ * Each entry also records a hash of its pixels, so albums with identical
+ * art, such as the discs of one set, point at a single shared slot.
+ *
+ * Replaced and invalidated slots are left in place until they outnumber the
+ * live ones, at which point both files are rewritten. A crash between the
+ * two writes of a put only leaves an unreferenced slot behind.
+ */
+public class ThumbnailStore {
+
+    private static final String TAG = "ThumbnailStore";
+
+    public static final int SIZE = 72;
+    public static final int SLOT_BYTES = SIZE * SIZE * 2;
+
+    private static final String DATA_FILE = "thumbs.dat";
+    private static final String INDEX_FILE = "thumbs.idx";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x50425448; // "PBTH"
+    // Version 1 entries had no content hash
+    private static final int VERSION = 2;
+    // magic, version, used entries, appended slots
+    private static final int HEADER_BYTES = 16;
+    // album id, slot, content hash
+    private static final int ENTRY_BYTES = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    // Album id 0 means no album, so a zero key marks a free entry
+    private static final long EMPTY_KEY = 0;
+    private static final int NO_SLOT = -1;
+    private static final int COMPACT_MIN_DEAD = 64;
+
+    private static ThumbnailStore instance;
+
+    private final File dir;
+    // Scratch buffer for compaction and duplicate checks
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(SLOT_BYTES);
+
+    private RandomAccessFile dataFile;
+    private FileChannel data;
+    private MappedByteBuffer index;
+    private int capacity;
+    // Entries holding a key, live or invalidated
+    private int used;
+    // Entries pointing at a slot
+    private int live;
+    private int slots;
+    // Entries pointing at each slot, and the number of slots with any
+    private int[] slotRefs;
+    private int liveSlots;
+    // Content hash -> the slot last stored with it, possibly dead since
+    private LongIntMap slotsByHash;
+    private boolean disabled;
+
+    private ThumbnailStore(File dir) {
+        this.dir = dir;
+    }
+
+    public static synchronized ThumbnailStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new ThumbnailStore(context.getApplicationContext().getCacheDir());
+        }
+        return instance;
+    }
+
+    /**
+     * Reads the album's thumbnail into {@code out}, a buffer of
+     * {@link #SLOT_BYTES} RGB565 pixels. Returns false if none is stored.
+     */
+    public synchronized boolean read(long albumId, ByteBuffer out) {
+        if (albumId == EMPTY_KEY || !ensureOpen()) return false;
+        int entry = find(albumId);
+        if (entry < 0) return false;
+        int slot = index.getInt(entryOffset(entry) + 8);
+        if (slot == NO_SLOT) return false;
+
+        try {
+            return readSlot(data, slot, out);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read thumbnail", e);
+            return false;
+        }
+    }
+
+    /** False once the files could not be opened or written; puts are then ignored. */
+    public synchronized boolean isAvailable() {
+        return ensureOpen();
+    }
+
+    /** Whether a thumbnail is stored for the album; only consults the index. */
+    public synchronized boolean contains(long albumId) {
+        if (albumId == EMPTY_KEY || !ensureOpen()) return false;
+        int entry = find(albumId);
+        return entry >= 0 && index.getInt(entryOffset(entry) + 8) != NO_SLOT;
+    }
+
+    /**
+     * Stores a thumbnail for the album, replacing any previous one.
+     * {@code pixels} holds {@link #SLOT_BYTES} of RGB565 pixel data.
+     */
+    public synchronized void put(long albumId, ByteBuffer pixels) {
+        if (pixels.capacity() != SLOT_BYTES) {
+            throw new IllegalArgumentException("Expected " + SLOT_BYTES + " bytes of pixels");
+        }
+        if (albumId == EMPTY_KEY || !ensureOpen()) return;
+        try {
+            if ((used + 1) * 4 > capacity * 3) {
+                rebuild(capacity * 2, false);
+            }
+            int hash = contentHash(pixels);
+            int slot = findSlot(hash, pixels);
+            if (slot == NO_SLOT) {
+                pixels.clear();
+                long position = (long) slots * SLOT_BYTES;
+                while (pixels.hasRemaining()) {
+                    position += data.write(pixels, position);
+                }
+                pixels.clear();
+                slot = slots++;
+                if (slot == slotRefs.length) {
+                    slotRefs = Arrays.copyOf(slotRefs, slot * 2);
+                }
+                slotsByHash.put(hash, slot);
+            }
+
+            int entry = find(albumId);
+            int oldSlot = NO_SLOT;
+            if (entry < 0) {
+                entry = -entry - 1;
+                index.putLong(entryOffset(entry), albumId);
+                used++;
+                live++;
+            } else {
+                oldSlot = index.getInt(entryOffset(entry) + 8);
+                if (oldSlot == NO_SLOT) {
+                    live++;
+                }
+            }
+            if (slot != oldSlot) {
+                retainSlot(slot);
+                if (oldSlot != NO_SLOT) {
+                    releaseSlot(oldSlot);
+                }
+            }
+            index.putInt(entryOffset(entry) + 8, slot);
+            index.putInt(entryOffset(entry) + 12, hash);
+            writeHeader();
+            compactIfWasteful();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to store thumbnail", e);
+            close();
+            disabled = true;
+        }
+    }
+
+    /** Forgets the album's thumbnail, e.g. after its art changed in MediaStore. */
+    public synchronized void invalidate(long albumId) {
+        if (albumId == EMPTY_KEY || !ensureOpen()) return;
+        int entry = find(albumId);
+        if (entry < 0) return;
+        int slot = index.getInt(entryOffset(entry) + 8);
+        if (slot == NO_SLOT) return;
+        index.putInt(entryOffset(entry) + 8, NO_SLOT);
+        live--;
+        releaseSlot(slot);
+        try {
+            compactIfWasteful();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compact thumbnails", e);
+            close();
+            disabled = true;
+        }
+    }
+
+    /** Rewrites both files without dead slots or invalidated entries. */
+    public synchronized void compact() {
+        if (!ensureOpen()) return;
+        try {
+            rebuild(capacity, true);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compact thumbnails", e);
+            close();
+            disabled = true;
+        }
+    }
+
+    private void compactIfWasteful() throws IOException {
+        int dead = slots - liveSlots;
+        if (dead >= COMPACT_MIN_DEAD && dead > liveSlots) {
+            rebuild(capacity, true);
+        }
+    }
+
+    /** Returns a live slot holding exactly {@code pixels}, or {@link #NO_SLOT}. */
+    private int findSlot(int hash, ByteBuffer pixels) throws IOException {
+        int slot = slotsByHash.get(hash, NO_SLOT);
+        if (slot == NO_SLOT || slotRefs[slot] == 0) return NO_SLOT;
+        // Hashes can collide, so only identical pixels share a slot
+        if (!readSlot(data, slot, scratch) || !samePixels(scratch, pixels)) return NO_SLOT;
+        return slot;
+    }
+
+    private void retainSlot(int slot) {
+        if (slotRefs[slot]++ == 0) {
+            liveSlots++;
+        }
+    }
+
+    private void releaseSlot(int slot) {
+        if (--slotRefs[slot] == 0) {
+            liveSlots--;
+        }
+    }
+
+    /** FNV-1a over a {@link #SLOT_BYTES} pixel buffer; leaves its position alone. */
+    public static int contentHash(ByteBuffer pixels) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i + 4 <= pixels.capacity(); i += 4) {
+            h = (h ^ pixels.getInt(i)) * 0x01000193;
+        }
+        return h;
+    }
+
+    /** Compares two whole pixel buffers; leaves their positions alone. */
+    public static boolean samePixels(ByteBuffer a, ByteBuffer b) {
+        int n = a.capacity();
+        if (b.capacity() != n) return false;
+        int i = 0;
+        for (; i + 8 <= n; i += 8) {
+            if (a.getLong(i) != b.getLong(i)) return false;
+        }
+        for (; i < n; i++) {
+            if (a.get(i) != b.get(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the entry holding {@code albumId}, or {@code -(free entry) - 1}
+     * if it is absent.
+     */
+    private int find(long albumId) {
+        int mask = capacity - 1;
+        int entry = hash(albumId) & mask;
+        while (true) {
+            long key = index.getLong(entryOffset(entry));
+            if (key == albumId) return entry;
+            if (key == EMPTY_KEY) return -entry - 1;
+            entry = (entry + 1) & mask;
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int entryOffset(int entry) {
+        return HEADER_BYTES + entry * ENTRY_BYTES;
+    }
+
+    private static boolean readSlot(FileChannel channel, int slot, ByteBuffer out)
+            throws IOException {
+        out.clear();
+        long position = (long) slot * SLOT_BYTES;
+        while (out.hasRemaining()) {
+            int n = channel.read(out, position);
+            if (n < 0) return false;
+            position += n;
+        }
+        out.flip();
+        return true;
+    }
+
+    private void writeHeader() {
+        index.putInt(0, MAGIC);
+        index.putInt(4, VERSION);
+        index.putInt(8, used);
+        index.putInt(12, slots);
+    }
+
+    private boolean ensureOpen() {
+        if (index != null) return true;
+        if (disabled) return false;
+        try {
+            open();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Thumbnail store unavailable", e);
+            close();
+            disabled = true;
+            return false;
+        }
+    }
+
+    private void open() throws IOException {
+        File indexPath = new File(dir, INDEX_FILE);
+        File dataPath = new File(dir, DATA_FILE);
+        if (indexPath.exists() && dataPath.exists() && map(indexPath, dataPath)) {
+            return;
+        }
+        // Missing, foreign or truncated files: start over
+        close();
+        indexPath.delete();
+        dataPath.delete();
+        createIndex(indexPath, INITIAL_CAPACITY).force();
+        if (!map(indexPath, dataPath)) {
+            throw new IOException("Could not initialise " + indexPath);
+        }
+    }
+
+    /** Maps existing files and validates them; returns false if unusable. */
+    private boolean map(File indexPath, File dataPath) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(indexPath, "rw");
+        MappedByteBuffer mapped;
+        try {
+            long length = raf.length();
+            if (length < HEADER_BYTES) return false;
+            mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            // The mapping stays valid after the channel is closed
+            raf.close();
+        }
+        int entries = (int) ((mapped.capacity() - HEADER_BYTES) / ENTRY_BYTES);
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION
+                || entries == 0 || (entries & (entries - 1)) != 0) {
+            return false;
+        }
+        int storedSlots = mapped.getInt(12);
+        int liveCount = 0;
+        int usedCount = 0;
+        int[] refs = new int[Math.max(storedSlots, 64)];
+        int liveSlotCount = 0;
+        LongIntMap byHash = new LongIntMap(storedSlots);
+        for (int i = 0; i < entries; i++) {
+            int offset = entryOffset(i);
+            if (mapped.getLong(offset) == EMPTY_KEY) continue;
+            usedCount++;
+            int slot = mapped.getInt(offset + 8);
+            if (slot == NO_SLOT) continue;
+            if (slot < 0 || slot >= storedSlots) return false;
+            liveCount++;
+            if (refs[slot]++ == 0) {
+                liveSlotCount++;
+                byHash.put(mapped.getInt(offset + 12), slot);
+            }
+        }
+
+        RandomAccessFile file = new RandomAccessFile(dataPath, "rw");
+        if (file.length() < (long) storedSlots * SLOT_BYTES) {
+            file.close();
+            return false;
+        }
+        dataFile = file;
+        data = file.getChannel();
+        index = mapped;
+        capacity = entries;
+        used = usedCount;
+        live = liveCount;
+        slots = storedSlots;
+        slotRefs = refs;
+        liveSlots = liveSlotCount;
+        slotsByHash = byHash;
+        return true;
+    }
+
+    private static MappedByteBuffer createIndex(File path, int entries) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(path, "rw");
+        try {
+            raf.setLength(0);
+            long length = HEADER_BYTES + (long) entries * ENTRY_BYTES;
+            raf.setLength(length);
+            MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            mapped.putInt(0, MAGIC);
+            mapped.putInt(4, VERSION);
+            return mapped;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Rehashes the live entries into a table of {@code newCapacity} entries.
+     * With {@code compactData} the live slots are also copied into a fresh
+     * data file in table order, each shared slot once.
+     */
+    private void rebuild(int newCapacity, boolean compactData) throws IOException {
+        File indexPath = new File(dir, INDEX_FILE);
+        File dataPath = new File(dir, DATA_FILE);
+        File tempIndex = new File(dir, INDEX_FILE + TEMP_SUFFIX);
+        File tempData = new File(dir, DATA_FILE + TEMP_SUFFIX);
+
+        MappedByteBuffer newIndex = createIndex(tempIndex, newCapacity);
+        RandomAccessFile newDataFile = null;
+        FileChannel newData = null;
+        if (compactData) {
+            newDataFile = new RandomAccessFile(tempData, "rw");
+            newDataFile.setLength(0);
+            newData = newDataFile.getChannel();
+        }
+
+        int mask = newCapacity - 1;
+        int newUsed = 0;
+        int newSlots = compactData ? 0 : slots;
+        // Old slot -> its copy in the new data file
+        int[] moved = null;
+        if (compactData) {
+            moved = new int[slots];
+            Arrays.fill(moved, NO_SLOT);
+        }
+        try {
+            for (int i = 0; i < capacity; i++) {
+                int offset = entryOffset(i);
+                long key = index.getLong(offset);
+                int slot = index.getInt(offset + 8);
+                if (key == EMPTY_KEY || slot == NO_SLOT) continue;
+
+                if (compactData) {
+                    if (moved[slot] == NO_SLOT) {
+                        if (!readSlot(data, slot, scratch)) continue;
+                        long position = (long) newSlots * SLOT_BYTES;
+                        while (scratch.hasRemaining()) {
+                            position += newData.write(scratch, position);
+                        }
+                        moved[slot] = newSlots++;
+                    }
+                    slot = moved[slot];
+                }
+                int entry = hash(key) & mask;
+                while (newIndex.getLong(entryOffset(entry)) != EMPTY_KEY) {
+                    entry = (entry + 1) & mask;
+                }
+                newIndex.putLong(entryOffset(entry), key);
+                newIndex.putInt(entryOffset(entry) + 8, slot);
+                newIndex.putInt(entryOffset(entry) + 12, index.getInt(offset + 12));
+                newUsed++;
+            }
+            newIndex.putInt(8, newUsed);
+            newIndex.putInt(12, newSlots);
+            newIndex.force();
+            if (newData != null) {
+                newData.force(false);
+            }
+        } catch (IOException e) {
+            if (newDataFile != null) newDataFile.close();
+            tempIndex.delete();
+            tempData.delete();
+            throw e;
+        }
+
+        if (newDataFile != null) {
+            // The old index must not survive pointing into the new data file,
+            // so a crash between the renames resets the store instead
+            index.putInt(0, 0);
+            index.force();
+        }
+        close();
+        if (newDataFile != null) {
+            newDataFile.close();
+            if (!tempData.renameTo(dataPath)) {
+                throw new IOException("Could not replace " + dataPath);
+            }
+        }
+        if (!tempIndex.renameTo(indexPath)) {
+            throw new IOException("Could not replace " + indexPath);
+        }
+        if (!map(indexPath, dataPath)) {
+            throw new IOException("Rebuilt thumbnail store failed validation");
+        }
+        Log.i(TAG, "Rebuilt thumbnail store: " + live + " thumbnails in " + liveSlots
+                + " slots, " + capacity + " entries" + (compactData ? ", compacted" : ""));
+    }
+
+    private void close() {
+        if (dataFile != null) {
+            try { dataFile.close(); } catch (IOException ignored) {}
+        }
+        dataFile = null;
+        data = null;
+        index = null;
+    }
+}
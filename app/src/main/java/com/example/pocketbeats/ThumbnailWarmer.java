@@ -0,0 +1,187 @@
+package com.example.pocketbeats;
+
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Process;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Fills the {@link ThumbnailStore} ahead of the first scroll through the
+ * library, one album at a time in the order the song list shows them.
+ * Runs only while the device is charging or its screen is off, and never
+ * while the list is moving. The thread runs at the lowest priority and
+ * rests between decodes, so it never competes with playback or the UI.
+ *
+ * Thumbnails go to the store only; the memory cache is left to what is
+ * actually on screen.
+ */
+public class ThumbnailWarmer {
+
+    private static final String TAG = "ThumbnailWarmer";
+
+    // Rest between decodes, keeping disk reads to a trickle
+    private static final long DECODE_INTERVAL_MS = 250;
+
+    private static ThumbnailWarmer instance;
+
+    private final ContentResolver resolver;
+    private final ThumbnailStore store;
+    private final AlbumArtCache cache;
+    private final BitmapPool pool = BitmapPool.getInstance();
+
+    // Everything below is guarded by this
+    // Songs left to walk, in list order; null once done
+    private ArrayList<Song> songs;
+    private int next;
+    private LongHashSet seenAlbums;
+    private int decoded;
+    private boolean charging;
+    private boolean screenOff;
+    private boolean scrolling;
+
+    private ThumbnailWarmer(Context context) {
+        Context app = context.getApplicationContext();
+        resolver = app.getContentResolver();
+        store = ThumbnailStore.getInstance(app);
+        cache = AlbumArtCache.getInstance(app);
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            public void onReceive(Context context, Intent intent) {
+                updateDeviceState(intent);
+            }
+        };
+        // Battery state is sticky, so the current value comes straight back
+        Intent battery = app.registerReceiver(receiver, filter);
+        if (battery != null) {
+            updateDeviceState(battery);
+        }
+
+        Thread worker = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                runWorker();
+            }
+        }, "ThumbnailWarmer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public static synchronized ThumbnailWarmer getInstance(Context context) {
+        if (instance == null) {
+            instance = new ThumbnailWarmer(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Starts over with a new library order. Albums already in the store are
+     * skipped at the cost of an index lookup.
+     */
+    public synchronized void setSongs(ArrayList<Song> order) {
+        songs = order.isEmpty() ? null : order;
+        next = 0;
+        seenAlbums = new LongHashSet(order.size() / 8);
+        decoded = 0;
+        notifyAll();
+    }
+
+    /** Holds the warmer back while the list is moving. */
+    public synchronized void setScrolling(boolean scrolling) {
+        this.scrolling = scrolling;
+        if (!scrolling) {
+            notifyAll();
+        }
+    }
+
+    private synchronized void updateDeviceState(Intent intent) {
+        String action = intent.getAction();
+        if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+            screenOff = true;
+        } else if (Intent.ACTION_SCREEN_ON.equals(action)) {
+            screenOff = false;
+        } else if (Intent.ACTION_BATTERY_CHANGED.equals(action)) {
+            charging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        }
+        notifyAll();
+    }
+
+    private boolean canRun() {
+        return songs != null && !scrolling && (charging || screenOff);
+    }
+
+    private void runWorker() {
+        while (true) {
+            Song song;
+            try {
+                ArrayList<Song> pass;
+                synchronized (this) {
+                    while (!canRun()) {
+                        wait();
+                    }
+                    pass = songs;
+                }
+                if (!store.isAvailable()) {
+                    // Nothing could be stored, so every album would decode again next time
+                    Log.w(TAG, "Thumbnail store unavailable; not warming");
+                    synchronized (this) {
+                        if (songs == pass) songs = null;
+                    }
+                    continue;
+                }
+                synchronized (this) {
+                    if (!canRun()) continue;
+                    song = songs.get(next++);
+                    if (next == songs.size()) {
+                        Log.i(TAG, "Warmed " + decoded + " thumbnails");
+                        songs = null;
+                    }
+                    long albumId = song.getAlbumKey();
+                    if (albumId == 0 || !seenAlbums.add(albumId)) continue;
+                }
+                if (warm(song.getAlbumKey(), song.getPath())) {
+                    Thread.sleep(DECODE_INTERVAL_MS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Stores the album's thumbnail unless it is known; returns true if it decoded. */
+    private boolean warm(long albumId, String path) {
+        AlbumArtLocator locator = AlbumArtLocator.getCurrent();
+        if (cache.isNoArt(albumId) || locator.hasNoArt(albumId) || store.contains(albumId)) {
+            return false;
+        }
+        ArtDecoder.Source source = locator.sourceFor(resolver, albumId, path);
+        if (source == null) {
+            cache.putNoArt(albumId);
+            return false;
+        }
+        ByteBuffer pixels = pool.acquireBuffer();
+        try {
+            int result = ArtLoader.decodeThumbnail(source, pixels);
+            if (result == ArtLoader.DECODED) {
+                store.put(albumId, pixels);
+                synchronized (this) {
+                    decoded++;
+                }
+            } else if (result == ArtLoader.NO_IMAGE) {
+                cache.putNoArt(albumId);
+            }
+        } finally {
+            pool.releaseBuffer(pixels);
+        }
+        return true;
+    }
+}